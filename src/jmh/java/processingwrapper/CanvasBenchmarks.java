@@ -0,0 +1,324 @@
+package processingwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import processing.core.PGraphics;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * JMH benchmarks of recording draw calls on a canvas and committing them to
+ * an offscreen graphics, at varying numbers of elements. Run them from the
+ * project directory (so that {@code images/} can be found) with
+ *
+ * <pre>
+ * ./gradlew jmh --args='[options] [filter]'
+ * </pre>
+ *
+ * where the options are those of JMH (e.g. {@code -prof gc} to measure
+ * allocation) and the optional filter is a regular expression selecting
+ * benchmarks by name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CanvasBenchmarks {
+  private static final int SIZE = 800;
+  private static final int SUBCANVASES = 1_000;
+  private static final int SHAPES_PER_SUBCANVAS = 200;
+
+  private static final ShapeSettings[] SETTINGS = {
+      ShapeSettings.createWithFill(Color.RED),
+      ShapeSettings.createWithFill(Color.BLUE).withStroke(1, Color.BLACK),
+      ShapeSettings.createWithStroke(2, Color.GREEN),
+  };
+
+  /** The offscreen graphics that canvases are committed to. */
+  @State(Scope.Thread)
+  public static class Target {
+    PGraphics graphics;
+    RenderState state;
+    // Nothing fits in an empty cache, so every nested canvas is replayed.
+    RenderCache noCache;
+    RenderCache cache;
+    FlatCommands flattened;
+    TileRasterizer rasterizer;
+    // The number of the operation, which benchmarks use to draw something different
+    // each time, so that nothing can be reused from the last operation.
+    int op;
+
+    @Setup
+    public void setUp() {
+      graphics = OffscreenRenderer.createGraphics(SIZE, SIZE);
+      state = new RenderState(graphics);
+      noCache = new RenderCache(graphics.parent, 0);
+      cache = new RenderCache(graphics.parent);
+      flattened = new FlatCommands();
+      rasterizer = new TileRasterizer(SIZE, SIZE);
+    }
+
+    long commit(Canvas main, RenderCache cache) {
+      graphics.beginDraw();
+      graphics.background(255);
+      main.commit(state, cache);
+      graphics.endDraw();
+      return state.issuedCalls();
+    }
+  }
+
+  /** The number of elements drawn, and a canvas to record them on. */
+  @State(Scope.Thread)
+  public static class Elements {
+    @Param({"100", "1000", "10000"})
+    public int count;
+
+    Canvas recordCanvas;
+
+    @Setup
+    public void setUp() {
+      recordCanvas = Canvas.retained(SIZE, SIZE);
+    }
+  }
+
+  /** Canvases that are recorded into one by one or in parallel. */
+  @State(Scope.Thread)
+  public static class Subcanvases {
+    List<Canvas> canvases;
+
+    @Setup
+    public void setUp() {
+      canvases = new ArrayList<>();
+      for (int i = 0; i < SUBCANVASES; i++) canvases.add(Canvas.retained(SIZE / 8, SIZE / 8));
+    }
+  }
+
+  /**
+   * A chain of cacheable canvases, each drawn on the one before it. The canvases are
+   * kept from operation to operation, so that the render cache can keep their images.
+   */
+  @State(Scope.Thread)
+  public static class Nested {
+    @Param({"1", "8", "32"})
+    public int depth;
+
+    Canvas[] chain;
+
+    @Setup
+    public void setUp() {
+      chain = new Canvas[depth];
+      for (int d = 0; d < depth; d++) {
+        chain[d] = Canvas.of(SIZE - 10 * d, SIZE - 10 * d);
+        chain[d].setCacheable(true);
+      }
+    }
+  }
+
+  /** The images drawn by the image benchmarks, loaded separately and packed into an atlas. */
+  @State(Scope.Thread)
+  public static class Images {
+    Image image;
+    List<Image> separate;
+    List<Image> packed;
+
+    @Setup
+    public void setUp() {
+      image = Image.ofFile("images/dog.jpg").whenReady().join();
+      separate = Image.loadAll("images/cat.jpg", "images/dog.jpg", "images/eagle.jpg", "images/wolf.jpg");
+      packed = ImageAtlas.of(separate).images();
+    }
+  }
+
+  private static Position positionOf(int i, int op) {
+    return Position.centeredAt((i * 37 + op) % SIZE, (i * 91) % SIZE);
+  }
+
+  // Draw shapes on a retained canvas, then clear it without committing it.
+  @Benchmark
+  public Canvas record(Elements elements, Target target) {
+    int op = target.op++;
+    Canvas canvas = elements.recordCanvas;
+    for (int i = 0; i < elements.count; i++) {
+      canvas.draw(i % 2 == 0 ? Circle.of(4) : Rectangle.of(6, 4), SETTINGS[i % SETTINGS.length], positionOf(i, op));
+    }
+    canvas.fill(Color.WHITE);
+    return canvas;
+  }
+
+  // Like record, but each draw rebuilds its shape and settings, which are interned, and
+  // passes coordinates instead of a Position, so that recording allocates nothing.
+  @Benchmark
+  public Canvas recordCoordinates(Elements elements, Target target) {
+    int op = target.op++;
+    Canvas canvas = elements.recordCanvas;
+    for (int i = 0; i < elements.count; i++) {
+      ShapeSettings original = SETTINGS[i % SETTINGS.length];
+      ShapeSettings settings = ShapeSettings.createWithFill(original.fillColor())
+          .withStroke(original.strokeWeight(), original.strokeColor());
+      canvas.draw(i % 2 == 0 ? Circle.of(4) : Rectangle.of(6, 4), settings,
+          (i * 37 + op) % SIZE, (i * 91) % SIZE, Position.DrawMode.CENTER);
+    }
+    canvas.fill(Color.WHITE);
+    return canvas;
+  }
+
+  @Benchmark
+  public List<Canvas> recordSubcanvasesSequential(Subcanvases subcanvases, Target target) {
+    return recordSubcanvases(subcanvases.canvases, false, target.op++);
+  }
+
+  @Benchmark
+  public List<Canvas> recordSubcanvasesParallel(Subcanvases subcanvases, Target target) {
+    return recordSubcanvases(subcanvases.canvases, true, target.op++);
+  }
+
+  // Clear each of the subcanvases and draw shapes on it, one by one or in parallel.
+  private static List<Canvas> recordSubcanvases(List<Canvas> subcanvases, boolean parallel, int op) {
+    ObjIntConsumer<Canvas> recorder = (canvas, index) -> {
+      canvas.fill(Color.WHITE);
+      for (int i = 0; i < SHAPES_PER_SUBCANVAS; i++) {
+        canvas.draw(Circle.of(2), SETTINGS[i % SETTINGS.length], positionOf(i + index, op));
+      }
+    };
+    if (parallel) {
+      Canvas.recordInParallel(subcanvases, recorder);
+    } else {
+      for (int i = 0; i < subcanvases.size(); i++) recorder.accept(subcanvases.get(i), i);
+    }
+    return subcanvases;
+  }
+
+  // Draw shapes on the main canvas and commit it.
+  @Benchmark
+  public long commit(Elements elements, Target target) {
+    int op = target.op++;
+    Canvas main = Canvas.of(SIZE, SIZE);
+    for (int i = 0; i < elements.count; i++) {
+      main.draw(i % 2 == 0 ? Circle.of(4) : Rectangle.of(6, 4), SETTINGS[i % SETTINGS.length], positionOf(i, op));
+    }
+    return target.commit(main, target.noCache);
+  }
+
+  // Draw identical circles on the main canvas one by one, and commit it.
+  @Benchmark
+  public long instancesSeparate(Elements elements, Target target) {
+    int op = target.op++;
+    Canvas main = Canvas.of(SIZE, SIZE);
+    for (int i = 0; i < elements.count; i++) {
+      main.draw(Circle.of(4), SETTINGS[1], positionOf(i, op));
+    }
+    return target.commit(main, target.noCache);
+  }
+
+  // Draw the circles of instancesSeparate as instances, and commit the main canvas.
+  @Benchmark
+  public long instancesBatched(Elements elements, Target target) {
+    int op = target.op++;
+    Canvas main = Canvas.of(SIZE, SIZE);
+    double[] xs = new double[elements.count], ys = new double[elements.count];
+    for (int i = 0; i < elements.count; i++) {
+      Position pos = positionOf(i, op);
+      xs[i] = pos.x();
+      ys[i] = pos.y();
+    }
+    main.drawInstances(Circle.of(4), SETTINGS[1], Position.DrawMode.CENTER, xs, ys);
+    return target.commit(main, target.noCache);
+  }
+
+  // Draw shapes on the main canvas and draw it with the software rasterizer.
+  @Benchmark
+  public void rasterize(Elements elements, Target target, Blackhole blackhole) {
+    int op = target.op++;
+    Canvas main = Canvas.of(SIZE, SIZE);
+    for (int i = 0; i < elements.count; i++) {
+      main.draw(i % 2 == 0 ? Circle.of(4) : Rectangle.of(6, 4), SETTINGS[i % SETTINGS.length], positionOf(i, op));
+    }
+    main.flatten(target.flattened, target.state, SIZE, SIZE);
+    blackhole.consume(target.rasterizer.draw(target.flattened));
+  }
+
+  // Commit the chain of nested canvases, with shapes that move every operation, so that
+  // the canvases have to be replayed.
+  @Benchmark
+  public long nestedReplayed(Nested nested, Target target) {
+    return commitNested(nested.chain, target, target.op++, target.noCache);
+  }
+
+  // Commit the chain of nested canvases, with the same shapes every operation, so that
+  // the outermost one is drawn from its image in the render cache.
+  @Benchmark
+  public long nestedCached(Nested nested, Target target) {
+    return commitNested(nested.chain, target, 0, target.cache);
+  }
+
+  // Draw a few shapes on each canvas of the chain, and the next canvas, and commit it.
+  private static long commitNested(Canvas[] chain, Target target, int op, RenderCache cache) {
+    Canvas main = Canvas.of(SIZE, SIZE);
+    Canvas parent = main;
+    for (int d = 0; d < chain.length; d++) {
+      Canvas child = chain[d];
+      for (int i = 0; i < 4; i++) {
+        child.draw(Circle.of(8), SETTINGS[i % SETTINGS.length], positionOf(i + d, op));
+      }
+      parent.draw(child, Position.topLeftCornerAt(5, 5));
+      parent = child;
+    }
+    return target.commit(main, cache);
+  }
+
+  // Commit copies of the image drawn at 48x48.
+  @Benchmark
+  public long imagesScaled(Elements elements, Images images, Target target) {
+    return commitImages(images.image, elements.count, 0, target);
+  }
+
+  // Commit copies of the image drawn at a size that changes every operation.
+  @Benchmark
+  public long imagesResized(Elements elements, Images images, Target target) {
+    return commitImages(images.image, elements.count, target.op++, target);
+  }
+
+  private static long commitImages(Image image, int n, int op, Target target) {
+    Canvas main = Canvas.of(SIZE, SIZE);
+    ImageSettings settings = ImageSettings.createWithSize(48 + op % 16, 48 + op % 16);
+    for (int i = 0; i < n; i++) {
+      main.draw(image, settings, positionOf(i, 0));
+    }
+    return target.commit(main, target.noCache);
+  }
+
+  // Commit images drawn at their own size, taking turns among separately loaded images.
+  @Benchmark
+  public long spritesSeparate(Elements elements, Images images, Target target) {
+    return commitSprites(images.separate, elements.count, target);
+  }
+
+  // Like spritesSeparate, but with the images packed into an atlas.
+  @Benchmark
+  public long spritesAtlas(Elements elements, Images images, Target target) {
+    return commitSprites(images.packed, elements.count, target);
+  }
+
+  private static long commitSprites(List<Image> images, int n, Target target) {
+    Canvas main = Canvas.of(SIZE, SIZE);
+    for (int i = 0; i < n; i++) {
+      main.draw(images.get(i % images.size()), positionOf(i, 0));
+    }
+    return target.commit(main, target.noCache);
+  }
+}
@@ -0,0 +1,203 @@
+package processingwrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The {@link AppSettings} class is used to define how {@link ProcessingApp#start} runs an app: which
+ * {@link FrameRecorder} records its frames, which {@link FrameListener}s are told about them, and whether
+ * statistics about each frame are shown on the screen, whether frames are pipelined, whether they are rendered
+ * in software, whether only their changed regions are redrawn, and whether unchanged canvases are cached. An
+ * {@link AppSettings} instance is immutable; once created, any modifications will return a new instance.
+ */
+public class AppSettings {
+  private static final AppSettings DEFAULT =
+      new AppSettings(null, Collections.emptyList(), false, false, false, false, false);
+
+  // Null if the frames are not recorded.
+  private final FrameRecorder recorder;
+  private final List<FrameListener> frameListeners;
+  private final boolean statsOverlay;
+  private final boolean pipelined;
+  private final boolean softwareRendering;
+  private final boolean incrementalRedraw;
+  private final boolean autoCaching;
+
+  private AppSettings(FrameRecorder recorder, List<FrameListener> frameListeners, boolean statsOverlay,
+                      boolean pipelined, boolean softwareRendering, boolean incrementalRedraw, boolean autoCaching) {
+    this.recorder = recorder;
+    this.frameListeners = frameListeners;
+    this.statsOverlay = statsOverlay;
+    this.pipelined = pipelined;
+    this.softwareRendering = softwareRendering;
+    this.incrementalRedraw = incrementalRedraw;
+    this.autoCaching = autoCaching;
+  }
+
+  /**
+   * @return The recorder that records the frames, if any.
+   */
+  public Optional<FrameRecorder> recorder() {
+    return Optional.ofNullable(recorder);
+  }
+
+  /**
+   * @return The listeners that are told about every frame, in the order they were added.
+   */
+  public List<FrameListener> frameListeners() {
+    return frameListeners;
+  }
+
+  /**
+   * @return Whether statistics about each frame are shown on the screen.
+   */
+  public boolean showsStatsOverlay() {
+    return statsOverlay;
+  }
+
+  /**
+   * @return Whether the next frame is drawn while the current one is committed.
+   */
+  public boolean isPipelined() {
+    return pipelined;
+  }
+
+  /**
+   * @return Whether frames are drawn by the software rasterizer instead of by Processing.
+   */
+  public boolean usesSoftwareRendering() {
+    return softwareRendering;
+  }
+
+  /**
+   * @return Whether only the regions of the frame that changed since the previous frame are redrawn.
+   */
+  public boolean usesIncrementalRedraw() {
+    return incrementalRedraw;
+  }
+
+  /**
+   * @return Whether nested canvases that stay unchanged for a few frames are drawn from offscreen images.
+   */
+  public boolean usesAutoCaching() {
+    return autoCaching;
+  }
+
+  /**
+   * Creates an {@link AppSettings} instance that does not record frames, has no listeners, does not show
+   * statistics, does not pipeline frames, and redraws each of them entirely through Processing, caching only the
+   * canvases marked with {@link Canvas#setCacheable}.
+   *
+   * @return An {@link AppSettings} instance with the default settings.
+   */
+  public static AppSettings createDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance with the given recorder and the settings of the calling instance.
+   * Every frame drawn to the screen is recorded (without the statistics overlay), and the recorder is closed
+   * when the app exits.
+   *
+   * @param recorder The recorder to record the frames with.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withRecorder(FrameRecorder recorder) {
+    return new AppSettings(Objects.requireNonNull(recorder), this.frameListeners, this.statsOverlay,
+        this.pipelined, this.softwareRendering, this.incrementalRedraw, this.autoCaching);
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance with the given listener added to the listeners of the calling
+   * instance, and its other settings.
+   *
+   * @param listener The listener to tell about every frame.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withFrameListener(FrameListener listener) {
+    List<FrameListener> listeners = new ArrayList<>(this.frameListeners);
+    listeners.add(Objects.requireNonNull(listener));
+    return new AppSettings(this.recorder, Collections.unmodifiableList(listeners), this.statsOverlay,
+        this.pipelined, this.softwareRendering, this.incrementalRedraw, this.autoCaching);
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance that does or does not show statistics about each frame (frame
+   * times, what was drawn) in the top left corner of the window, and has the other settings of the calling
+   * instance.
+   *
+   * @param statsOverlay Whether to show the statistics.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withStatsOverlay(boolean statsOverlay) {
+    return new AppSettings(this.recorder, this.frameListeners, statsOverlay, this.pipelined,
+        this.softwareRendering, this.incrementalRedraw, this.autoCaching);
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance that does or does not pipeline frames, and has the other settings
+   * of the calling instance. With pipelining, {@link ProcessingApp#drawFrame} is called on a separate thread, one
+   * frame ahead: the next frame is drawn on the canvases while the current one is committed to the screen. This
+   * shortens the frames of apps that take long both to draw and to commit, at the cost of showing each frame one
+   * frame later. The canvases drawn on must then only be used from within {@link ProcessingApp#drawFrame} (and the
+   * callbacks it passes them to), as {@link ProcessingApp#frameRendered} and the listeners are called on the other
+   * thread.
+   *
+   * @param pipelined Whether to pipeline frames.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withPipelining(boolean pipelined) {
+    return new AppSettings(this.recorder, this.frameListeners, this.statsOverlay, pipelined, this.softwareRendering,
+        this.incrementalRedraw, this.autoCaching);
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance that does or does not render frames in software, and has the other
+   * settings of the calling instance. A software-rendered frame is split into tiles that are drawn in parallel, so
+   * that rendering scales with the number of cores, rather than being drawn by Processing on one thread. Nested
+   * canvases are clipped just like they are by Processing, but edges are not anti-aliased and images are not
+   * smoothed when scaled. Mostly useful with {@link ProcessingApp#renderOffscreen} and
+   * {@link ProcessingApp#recordOffscreen}.
+   *
+   * @param softwareRendering Whether to render frames in software.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withSoftwareRendering(boolean softwareRendering) {
+    return new AppSettings(this.recorder, this.frameListeners, this.statsOverlay, this.pipelined, softwareRendering,
+        this.incrementalRedraw, this.autoCaching);
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance that does or does not redraw only the changed regions of each frame,
+   * and has the other settings of the calling instance. Instead of clearing the window and redrawing everything,
+   * the elements drawn in a frame are compared with those of the previous frame, and only the region covering the
+   * ones that changed is cleared and redrawn; if that region covers more than half of the window, everything is
+   * redrawn. This saves most of the drawing for apps where little moves from one frame to the next. Canvases are
+   * then not drawn from the render cache. Has no effect if frames are rendered in software.
+   *
+   * @param incrementalRedraw Whether to redraw only the changed regions.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withIncrementalRedraw(boolean incrementalRedraw) {
+    return new AppSettings(this.recorder, this.frameListeners, this.statsOverlay, this.pipelined,
+        this.softwareRendering, incrementalRedraw, this.autoCaching);
+  }
+
+  /**
+   * Creates a new {@link AppSettings} instance that does or does not cache nested canvases automatically, and has
+   * the other settings of the calling instance. With automatic caching, a nested canvas whose contents stay the
+   * same for a few frames in a row is drawn from an offscreen image of it, like a canvas marked with
+   * {@link Canvas#setCacheable}, until its contents change. Anti-aliased edges within such a canvas may then come
+   * out slightly differently than when it is drawn directly, so caching is off by default.
+   *
+   * @param autoCaching Whether to cache unchanged nested canvases automatically.
+   * @return A new {@link AppSettings} instance.
+   */
+  public AppSettings withAutoCaching(boolean autoCaching) {
+    return new AppSettings(this.recorder, this.frameListeners, this.statsOverlay, this.pipelined,
+        this.softwareRendering, this.incrementalRedraw, autoCaching);
+  }
+}
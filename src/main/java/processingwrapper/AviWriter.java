@@ -0,0 +1,154 @@
+package processingwrapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a Motion JPEG AVI file: a single video stream whose frames are
+ * JPEG images, followed by an index of the frames. The headers are written
+ * last, since they contain the size and number of the frames.
+ *
+ * Not externally accessible! Used by {@link FrameRecorder}.
+ */
+final class AviWriter implements Closeable {
+  // Offset of the "movi" list type, which frame offsets in the index are relative to.
+  private static final int MOVI_OFFSET = 220;
+  // Length of all headers up to the first frame.
+  private static final int HEADER_LENGTH = 224;
+  private static final int AVIF_HASINDEX = 0x10;
+  private static final int AVIIF_KEYFRAME = 0x10;
+
+  private final RandomAccessFile file;
+  private final double framesPerSecond;
+  private int width, height;
+  private int frames;
+  private int[] frameOffsets = new int[64];
+  private int[] frameLengths = new int[64];
+  private int maxFrameLength;
+
+  AviWriter(File file, double framesPerSecond) throws IOException {
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+    this.file.write(new byte[HEADER_LENGTH]);
+    this.framesPerSecond = framesPerSecond;
+  }
+
+  /** Append a frame, encoded as a JPEG image of the given size. All frames must have the same size. */
+  void writeFrame(byte[] jpeg, int width, int height) throws IOException {
+    if (frames == 0) {
+      this.width = width;
+      this.height = height;
+    }
+    if (frames == frameOffsets.length) {
+      frameOffsets = Arrays.copyOf(frameOffsets, 2 * frames);
+      frameLengths = Arrays.copyOf(frameLengths, 2 * frames);
+    }
+    long offset = file.getFilePointer();
+    frameOffsets[frames] = (int) (offset - MOVI_OFFSET);
+    frameLengths[frames] = jpeg.length;
+    frames++;
+    maxFrameLength = Math.max(maxFrameLength, jpeg.length);
+
+    ByteBuffer chunk = chunkHeader("00dc", jpeg.length);
+    file.write(chunk.array());
+    file.write(jpeg);
+    if (jpeg.length % 2 != 0) file.write(0);  // Chunks are padded to an even length.
+  }
+
+  /** Write the index and headers, then close the file. */
+  @Override
+  public void close() throws IOException {
+    try {
+      long indexOffset = file.getFilePointer();
+      ByteBuffer index = chunkHeader("idx1", 16 * frames);
+      file.write(index.array());
+      ByteBuffer entries = ByteBuffer.allocate(16 * frames).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < frames; i++) {
+        putFourCC(entries, "00dc");
+        entries.putInt(AVIIF_KEYFRAME).putInt(frameOffsets[i]).putInt(frameLengths[i]);
+      }
+      file.write(entries.array());
+      long length = file.getFilePointer();
+
+      file.seek(0);
+      file.write(headers((int) (length - 8), (int) (indexOffset - MOVI_OFFSET)).array());
+    } finally {
+      file.close();
+    }
+  }
+
+  private ByteBuffer headers(int riffLength, int moviLength) {
+    int microsPerFrame = (int) Math.round(1e6 / framesPerSecond);
+    int rate = (int) Math.round(framesPerSecond * 1000);
+    ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    putFourCC(b, "RIFF");
+    b.putInt(riffLength);
+    putFourCC(b, "AVI ");
+
+    putFourCC(b, "LIST");
+    b.putInt(192);
+    putFourCC(b, "hdrl");
+    putFourCC(b, "avih");
+    b.putInt(56);
+    b.putInt(microsPerFrame);
+    b.putInt((int) Math.min(Integer.MAX_VALUE, (long) maxFrameLength * rate / 1000));
+    b.putInt(0);  // Padding granularity.
+    b.putInt(AVIF_HASINDEX);
+    b.putInt(frames);
+    b.putInt(0);  // Initial frames.
+    b.putInt(1);  // Streams.
+    b.putInt(maxFrameLength);
+    b.putInt(width).putInt(height);
+    b.putInt(0).putInt(0).putInt(0).putInt(0);
+
+    putFourCC(b, "LIST");
+    b.putInt(116);
+    putFourCC(b, "strl");
+    putFourCC(b, "strh");
+    b.putInt(56);
+    putFourCC(b, "vids");
+    putFourCC(b, "MJPG");
+    b.putInt(0);  // Flags.
+    b.putShort((short) 0).putShort((short) 0);  // Priority and language.
+    b.putInt(0);  // Initial frames.
+    b.putInt(1000).putInt(rate);  // Frames per second is rate / 1000.
+    b.putInt(0);  // Start.
+    b.putInt(frames);
+    b.putInt(maxFrameLength);
+    b.putInt(-1);  // Default quality.
+    b.putInt(0);  // Sample size; varies between frames.
+    b.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+
+    putFourCC(b, "strf");
+    b.putInt(40);
+    b.putInt(40);
+    b.putInt(width).putInt(height);
+    b.putShort((short) 1).putShort((short) 24);  // Planes and bits per pixel.
+    putFourCC(b, "MJPG");
+    b.putInt(width * height * 3);
+    b.putInt(0).putInt(0).putInt(0).putInt(0);
+
+    putFourCC(b, "LIST");
+    b.putInt(moviLength);
+    putFourCC(b, "movi");
+    assert(b.position() == HEADER_LENGTH);
+    return b;
+  }
+
+  private static ByteBuffer chunkHeader(String fourCC, int length) {
+    ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    putFourCC(b, fourCC);
+    b.putInt(length);
+    return b;
+  }
+
+  private static void putFourCC(ByteBuffer b, String fourCC) {
+    b.put(fourCC.getBytes(StandardCharsets.US_ASCII));
+  }
+}
@@ -1,14 +1,20 @@
 package processingwrapper;
 
-import processing.core.PApplet;
-import processing.core.PImage;
+import processing.core.PGraphics;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjIntConsumer;
 
 /**
  * A canvas is an entity that contains elements to be drawn on the
@@ -22,22 +28,84 @@ import java.util.Set;
  * {@link ProcessingApp#drawFrame} method upon which the client is meant
  * to draw shapes, images, and other canvases.
  *
+ * A canvas created with {@link Canvas#of} is cleared every time it is
+ * drawn to the screen, so its contents have to be drawn again every frame.
+ * A canvas created with {@link Canvas#retained} instead keeps its contents
+ * from frame to frame. Elements can be added to a retained canvas with
+ * {@link Canvas#add}, which returns a {@link Handle} through which the
+ * element can later be moved, restyled or removed. The elements of a
+ * retained canvas under a point can be found with {@link Canvas#elementsAt};
+ * for canvases with very many elements, {@link Canvas#setIndexed} makes
+ * this, and drawing the canvas when it is only partly visible, faster.
+ *
+ * A canvas drawn within another canvas whose contents stay the same from
+ * frame to frame is rendered once to an offscreen image, which is then
+ * reused until the contents change. This happens from the first frame for
+ * canvases marked with {@link Canvas#setCacheable}, and, if the app turns
+ * it on (see {@link AppSettings#withAutoCaching}), automatically after a
+ * few unchanged frames.
+ *
+ * By default, elements are drawn in the order in which they were drawn on
+ * the canvas. If that order does not matter (e.g. for many non-overlapping
+ * particles), {@link Canvas#setOrderIndependent} lets the canvas group
+ * elements with the same settings together, which is faster to draw.
+ *
+ * A canvas can be drawn on from any thread, but from only one thread at a
+ * time. Different canvases can be drawn on at the same time, e.g. to build
+ * many sub-canvases in parallel with {@link Canvas#recordInParallel}; the
+ * main canvas is then only drawn to the screen on the drawing thread.
+ *
  * All methods in this class throw {@link NullPointerException} if
  * provided a null argument.
  */
 public class Canvas {
+  // How many chunks per thread recordInParallel splits the canvases into.
+  private static final int CHUNKS_PER_THREAD = 4;
+  // The epoch of the last publish(); see publishedEpoch.
+  private static final AtomicLong PUBLISH_EPOCHS = new AtomicLong();
+
   private double width, height;
-  private List<Drawable> drawables;
-  private List<Position> positions;
-  private java.awt.Color backgroundColor;
+  // Draw calls are recorded into a reusable buffer rather than allocating
+  // an object per call; see CommandBuffer.
+  private CommandBuffer commands;
+  // The buffer that committing draws from. The same as commands, unless frames are
+  // pipelined: then commands are recorded into one buffer while the other is drawn,
+  // and publish() hands the recorded buffer over to be drawn.
+  private CommandBuffer published;
+  // Whether the contents survive being committed to the screen.
+  private final boolean retained;
+  // Whether the user asked for this canvas to be rendered through the RenderCache.
+  private boolean cacheable;
+  // Whether the elements may be drawn in a different order than they were recorded in.
+  private boolean orderIndependent;
+  // Spatial index over the commands of a retained canvas, or null if not enabled.
+  private SpatialIndex index;
+  // Spatial index over the published commands, when they are not the recorded ones.
+  private SpatialIndex publishedIndex;
+
+  // Memoised result of contentHash(), valid for one frame and one buffer version.
+  private long contentHash, contentHashFrame = -1, contentHashVersion;
+  // Set while the content hash is being computed, to detect cycles.
+  private boolean hashing;
+  // The stack walking the canvases when this canvas is compiled; see compile().
+  private CompileFrame[] compileStack;
+  // Set while this canvas is on the path from the main canvas to the canvas being
+  // committed, flattened or discarded, to detect cycles without a visited set.
+  private boolean onPath;
+  // The epoch of the last publish() that reached this canvas.
+  private long publishedEpoch = -1;
+  // The content hash when this canvas was last committed, and for how many
+  // consecutive commits it has not changed. Used to decide automatic caching.
+  private long lastCommittedHash;
+  private int unchangedCommits;
 
-  private Canvas(double width, double height) {
+  private Canvas(double width, double height, boolean retained) {
     assert(width > 0 && height > 0);
     this.width = width;
     this.height = height;
-    drawables = new ArrayList<>();
-    positions = new ArrayList<>();
-    backgroundColor = null;
+    this.retained = retained;
+    commands = new CommandBuffer();
+    published = commands;
   }
 
   /**
@@ -47,7 +115,120 @@ public class Canvas {
   public static Canvas of(double width, double height) {
     if (!Shape.isPositive(width)) throw new IllegalArgumentException("width non-positive");
     if (!Shape.isPositive(height)) throw new IllegalArgumentException("height non-positive");
-    return new Canvas(width, height);
+    return new Canvas(width, height, false);
+  }
+
+  /**
+   * Create a retained canvas with the specified (positive) width and height.
+   * Unlike a canvas created with {@link #of}, a retained canvas is not cleared
+   * after each frame: everything drawn on it stays until it is removed through
+   * its {@link Handle} or the canvas is cleared with {@link #fill}.
+   * @throws IllegalArgumentException if width or height is not positive.
+   */
+  public static Canvas retained(double width, double height) {
+    if (!Shape.isPositive(width)) throw new IllegalArgumentException("width non-positive");
+    if (!Shape.isPositive(height)) throw new IllegalArgumentException("height non-positive");
+    return new Canvas(width, height, true);
+  }
+
+  /**
+   * Draw on each of the canvases concurrently, on the threads of the common
+   * {@link ForkJoinPool}. The recorder is called once for every canvas, with the
+   * canvas and its index in the list, and must only draw on that canvas (it may
+   * draw other canvases on it, as long as it does not draw on them). Returns
+   * once all canvases have been drawn on; each canvas then holds exactly what
+   * its recorder drew, in the order it drew it, however the calls were spread
+   * over the threads. Drawing the canvases on another canvas in the order of
+   * the list therefore gives the same result as drawing on them one by one.
+   * @throws IllegalArgumentException if a canvas is in the list more than once.
+   * @throws RuntimeException the exception thrown by a recorder, if any did.
+   */
+  public static void recordInParallel(List<Canvas> canvases, ObjIntConsumer<Canvas> recorder) {
+    recordInParallel(canvases, recorder, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Draw on each of the canvases concurrently, on the threads of the executor;
+   * otherwise the same as {@link #recordInParallel(List, ObjIntConsumer)}.
+   */
+  public static void recordInParallel(List<Canvas> canvases, ObjIntConsumer<Canvas> recorder, Executor executor) {
+    Objects.requireNonNull(recorder);
+    Objects.requireNonNull(executor);
+    Set<Canvas> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Canvas canvas : canvases) {
+      if (!distinct.add(Objects.requireNonNull(canvas))) throw new IllegalArgumentException("canvas listed twice");
+    }
+
+    // Split the canvases into a few contiguous chunks per thread, so that scheduling costs
+    // little even for many small canvases. The calling thread records the first chunk itself.
+    int threads = executor instanceof ForkJoinPool
+        ? ((ForkJoinPool) executor).getParallelism()
+        : Runtime.getRuntime().availableProcessors();
+    int n = canvases.size();
+    int chunks = Math.min(n, threads <= 1 ? 1 : CHUNKS_PER_THREAD * threads);
+    CompletableFuture<?>[] recordings = new CompletableFuture<?>[Math.max(0, chunks - 1)];
+    for (int c = 1; c < chunks; c++) {
+      int from = (int) ((long) n * c / chunks), to = (int) ((long) n * (c + 1) / chunks);
+      recordings[c - 1] = CompletableFuture.runAsync(() -> record(canvases, recorder, from, to), executor);
+    }
+    try {
+      record(canvases, recorder, 0, chunks == 0 ? 0 : n / chunks);
+    } finally {
+      try {
+        // Completing the futures also makes what was drawn visible to this thread.
+        CompletableFuture.allOf(recordings).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        if (e.getCause() instanceof Error) throw (Error) e.getCause();
+        throw e;
+      }
+    }
+  }
+
+  private static void record(List<Canvas> canvases, ObjIntConsumer<Canvas> recorder, int from, int to) {
+    for (int i = from; i < to; i++) recorder.accept(canvases.get(i), i);
+  }
+
+  /** @return whether this canvas keeps its contents from frame to frame. */
+  public boolean isRetained() {
+    return retained;
+  }
+
+  /**
+   * Mark whether this canvas should be rendered to an offscreen image when it
+   * is drawn within another canvas. The image is reused for as long as the
+   * contents of the canvas (including the canvases drawn on it) stay the same,
+   * so this is worthwhile for canvases with many elements that rarely change.
+   * The anti-aliased edges of its elements may come out a few levels lighter
+   * or darker than when the canvas is drawn directly, as the image is blended
+   * onto what is under it. Unmarked canvases are cached once they are
+   * unchanged for a few frames if the app turns that on (see
+   * {@link AppSettings#withAutoCaching}).
+   */
+  public void setCacheable(boolean cacheable) {
+    this.cacheable = cacheable;
+  }
+
+  /** @return whether this canvas was marked with {@link #setCacheable}. */
+  public boolean isCacheable() {
+    return cacheable;
+  }
+
+  /**
+   * Declare whether the order in which elements are drawn on this canvas
+   * matters. If it does not, the canvas draws elements that share the same
+   * settings (e.g. all red circles, then all blue rectangles) one after the
+   * other, so that the drawing settings change as rarely as possible.
+   * Overlapping elements may then be drawn in a different stacking order.
+   * This does not affect the canvases drawn on this canvas.
+   */
+  public void setOrderIndependent(boolean orderIndependent) {
+    this.orderIndependent = orderIndependent;
+  }
+
+  /** @return whether this canvas was marked with {@link #setOrderIndependent}. */
+  public boolean isOrderIndependent() {
+    return orderIndependent;
   }
 
   /** @return the width of the canvas as specified by the creator of the canvas. */
@@ -62,10 +243,8 @@ public class Canvas {
 
   /** Draw the provided object at the given position. */
   public void draw(Drawable drawable, Position pos) {
-    Objects.requireNonNull(drawable);
     Objects.requireNonNull(pos);
-    drawables.add(drawable);
-    positions.add(pos);
+    draw(drawable, pos.x(), pos.y(), pos.drawMode());
   }
 
   /** Draw the provided shape with the given settings at the given position. */
@@ -73,16 +252,14 @@ public class Canvas {
     Objects.requireNonNull(shape);
     Objects.requireNonNull(shapeSettings);
     Objects.requireNonNull(pos);
-    drawables.add(Drawable.ofShape(shape, shapeSettings));
-    positions.add(pos);
+    commands.addShape(shape, shapeSettings, pos);
   }
 
   /** Draw the provided image at the given position. */
   public void draw(Image img, Position pos) {
     Objects.requireNonNull(img);
     Objects.requireNonNull(pos);
-    drawables.add(Drawable.ofImage(img));
-    positions.add(pos);
+    commands.addImage(img, Double.NaN, Double.NaN, pos);
   }
 
   /** Draw the provided image with the given settings at the given position. */
@@ -90,171 +267,839 @@ public class Canvas {
     Objects.requireNonNull(img);
     Objects.requireNonNull(imgSettings);
     Objects.requireNonNull(pos);
-    drawables.add(Drawable.ofImage(img, imgSettings));
-    positions.add(pos);
+    commands.addImage(img, imgSettings.width(), imgSettings.height(), pos);
   }
 
   /** Draw the provided canvas at the given position. */
   public void draw(Canvas canvas, Position pos) {
     Objects.requireNonNull(canvas);
     Objects.requireNonNull(pos);
-    drawables.add(Drawable.ofCanvas(canvas));
-    positions.add(pos);
+    commands.addCanvas(canvas, pos);
+  }
+
+  /**
+   * Draw the provided object at the given coordinates, which are its center or its top
+   * left corner depending on the draw mode. Equivalent to drawing it at a
+   * {@link Position}, without creating one.
+   */
+  public void draw(Drawable drawable, double x, double y, Position.DrawMode drawMode) {
+    Objects.requireNonNull(drawable);
+    Objects.requireNonNull(drawMode);
+    switch (drawable.type()) {
+      case IMAGE:
+        if (drawable.imageSettings().isPresent()) {
+          ImageSettings imgSettings = drawable.imageSettings().get();
+          commands.addImage(drawable.image(), imgSettings.width(), imgSettings.height(), x, y, drawMode);
+        } else {
+          commands.addImage(drawable.image(), Double.NaN, Double.NaN, x, y, drawMode);
+        }
+        break;
+      case CANVAS:
+        commands.addCanvas(drawable.canvas(), x, y, drawMode);
+        break;
+      default:
+        commands.addShape(drawable.shape(), drawable.shapeSettings(), x, y, drawMode);
+        break;
+    }
+  }
+
+  /**
+   * Draw the provided shape with the given settings at the given coordinates, which are
+   * its center or its top left corner depending on the draw mode. Equivalent to drawing
+   * it at a {@link Position}, without creating one.
+   */
+  public void draw(Shape shape, ShapeSettings shapeSettings, double x, double y, Position.DrawMode drawMode) {
+    Objects.requireNonNull(shape);
+    Objects.requireNonNull(shapeSettings);
+    Objects.requireNonNull(drawMode);
+    commands.addShape(shape, shapeSettings, x, y, drawMode);
+  }
+
+  /** Draw the provided image at the given coordinates, which depend on the draw mode like a {@link Position}'s. */
+  public void draw(Image img, double x, double y, Position.DrawMode drawMode) {
+    Objects.requireNonNull(img);
+    Objects.requireNonNull(drawMode);
+    commands.addImage(img, Double.NaN, Double.NaN, x, y, drawMode);
+  }
+
+  /** Draw the provided image with the given settings at the given coordinates. */
+  public void draw(Image img, ImageSettings imgSettings, double x, double y, Position.DrawMode drawMode) {
+    Objects.requireNonNull(img);
+    Objects.requireNonNull(imgSettings);
+    Objects.requireNonNull(drawMode);
+    commands.addImage(img, imgSettings.width(), imgSettings.height(), x, y, drawMode);
+  }
+
+  /** Draw the provided canvas at the given coordinates. */
+  public void draw(Canvas canvas, double x, double y, Position.DrawMode drawMode) {
+    Objects.requireNonNull(canvas);
+    Objects.requireNonNull(drawMode);
+    commands.addCanvas(canvas, x, y, drawMode);
+  }
+
+  /**
+   * Draw copies of the provided shape with the given settings, one at each of the
+   * positions (xs[k], ys[k]), all with the given draw mode. The copies are recorded
+   * as a single element and drawn with a single setup of the drawing state, which
+   * is much cheaper than drawing them one by one when there are many (e.g. particles
+   * or stars). The positions are copied, so the arrays can be reused afterwards.
+   * @throws IllegalArgumentException if the arrays have different lengths.
+   */
+  public void drawInstances(Shape shape, ShapeSettings shapeSettings, Position.DrawMode drawMode,
+                            double[] xs, double[] ys) {
+    Objects.requireNonNull(shape);
+    Objects.requireNonNull(shapeSettings);
+    Objects.requireNonNull(drawMode);
+    Objects.requireNonNull(xs);
+    Objects.requireNonNull(ys);
+    if (xs.length != ys.length) throw new IllegalArgumentException("xs and ys differ in length");
+    if (xs.length == 0) return;
+    commands.addInstances(shape, shapeSettings, drawMode, new Instances(xs, ys));
+  }
+
+  /**
+   * Draw copies of the provided shape at each of the positions; see
+   * {@link #drawInstances(Shape, ShapeSettings, Position.DrawMode, double[], double[])}.
+   * @throws IllegalArgumentException if the drawable is not a shape, or if the
+   * arrays have different lengths.
+   */
+  public void drawInstances(Drawable drawable, Position.DrawMode drawMode, double[] xs, double[] ys) {
+    Objects.requireNonNull(drawable);
+    if (drawable.type() == Drawable.DrawableType.IMAGE || drawable.type() == Drawable.DrawableType.CANVAS) {
+      throw new IllegalArgumentException("drawable is not a shape");
+    }
+    drawInstances(drawable.shape(), drawable.shapeSettings(), drawMode, xs, ys);
+  }
+
+  /**
+   * Add the provided object at the given position to this retained canvas.
+   * @return a handle through which the added element can be changed later.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public Handle add(Drawable drawable, Position pos) {
+    checkRetained();
+    draw(drawable, pos);
+    return handleOf(commands.size() - 1);
+  }
+
+  /**
+   * Add the provided shape with the given settings at the given position to this
+   * retained canvas.
+   * @return a handle through which the added element can be changed later.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public Handle add(Shape shape, ShapeSettings shapeSettings, Position pos) {
+    checkRetained();
+    Objects.requireNonNull(shape);
+    Objects.requireNonNull(shapeSettings);
+    Objects.requireNonNull(pos);
+    return handleOf(commands.addShape(shape, shapeSettings, pos));
+  }
+
+  /**
+   * Add the provided image at the given position to this retained canvas.
+   * @return a handle through which the added element can be changed later.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public Handle add(Image img, Position pos) {
+    checkRetained();
+    Objects.requireNonNull(img);
+    Objects.requireNonNull(pos);
+    return handleOf(commands.addImage(img, Double.NaN, Double.NaN, pos));
+  }
+
+  /**
+   * Add the provided image with the given settings at the given position to this
+   * retained canvas.
+   * @return a handle through which the added element can be changed later.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public Handle add(Image img, ImageSettings imgSettings, Position pos) {
+    checkRetained();
+    Objects.requireNonNull(img);
+    Objects.requireNonNull(imgSettings);
+    Objects.requireNonNull(pos);
+    return handleOf(commands.addImage(img, imgSettings.width(), imgSettings.height(), pos));
+  }
+
+  /**
+   * Add the provided canvas at the given position to this retained canvas.
+   * @return a handle through which the added element can be changed later.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public Handle add(Canvas canvas, Position pos) {
+    checkRetained();
+    Objects.requireNonNull(canvas);
+    Objects.requireNonNull(pos);
+    return handleOf(commands.addCanvas(canvas, pos));
+  }
+
+  /**
+   * Build and maintain a spatial index over the elements of this retained
+   * canvas. The index is rebuilt whenever an element is added, changed or
+   * removed, and makes {@link #elementsAt} and drawing only the visible part
+   * of the canvas take time proportional to the number of elements found,
+   * rather than to the number of elements on the canvas. It is worthwhile for
+   * canvases with thousands of elements that change rarely.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public void setIndexed(boolean indexed) {
+    checkRetained();
+    index = indexed ? new SpatialIndex(width, height) : null;
+    publishedIndex = null;
+  }
+
+  /** @return whether this canvas maintains a spatial index; see {@link #setIndexed}. */
+  public boolean isIndexed() {
+    return index != null;
+  }
+
+  /**
+   * Find the elements of this retained canvas that lie under the given point,
+   * which is relative to the top left corner of the canvas. Ellipses and circles
+   * are hit only within their outline (including the stroke); other elements
+   * anywhere within their bounding box.
+   * @return handles to the elements under the point, topmost (i.e. drawn last) first.
+   * @throws IllegalStateException if this canvas is not retained.
+   */
+  public List<Handle> elementsAt(double x, double y) {
+    checkRetained();
+    List<Handle> hits = new ArrayList<>();
+    if (index != null) {
+      index.update(commands);
+      int[] found = index.results();
+      for (int k = index.query(commands, x, y, x, y) - 1; k >= 0; k--) {
+        if (commands.contains(found[k], x, y)) hits.add(handleOf(found[k]));
+      }
+    } else {
+      for (int i = commands.size() - 1; i >= 0; i--) {
+        if (!commands.isRemoved(i) && commands.contains(i, x, y)) hits.add(handleOf(i));
+      }
+    }
+    return hits;
+  }
+
+  private void checkRetained() {
+    if (!retained) throw new IllegalStateException("only retained canvases hand out handles");
+  }
+
+  private Handle handleOf(int index) {
+    int id = commands.id(index);
+    return new Handle(this, id, commands.stamp(id));
+  }
+
+  /**
+   * A reference to one element of a retained canvas, returned by
+   * {@link Canvas#add}. A handle stays valid until the element is
+   * removed (through any handle to it) or the canvas is cleared with
+   * {@link Canvas#fill}; after that, every method except
+   * {@link #isValid} throws {@link IllegalStateException}.
+   *
+   * All methods throw {@link NullPointerException} if provided a null argument.
+   */
+  public static final class Handle {
+    private final Canvas canvas;
+    private final int id;
+    private final int stamp;
+
+    private Handle(Canvas canvas, int id, int stamp) {
+      this.canvas = canvas;
+      this.id = id;
+      this.stamp = stamp;
+    }
+
+    /** @return the canvas that this handle's element belongs to. */
+    public Canvas canvas() {
+      return canvas;
+    }
+
+    /** @return whether the element is still on its canvas. */
+    public boolean isValid() {
+      return canvas.commands.indexOf(id, stamp) >= 0;
+    }
+
+    /** Draw the element at the given position from now on. */
+    public void moveTo(Position pos) {
+      Objects.requireNonNull(pos);
+      canvas.commands.setPosition(index(), pos);
+    }
+
+    /**
+     * Draw the element, which must be a shape, with the given settings from now on.
+     * @throws IllegalStateException if the element is not a shape.
+     */
+    public void restyle(ShapeSettings shapeSettings) {
+      Objects.requireNonNull(shapeSettings);
+      int i = index();
+      Drawable.DrawableType type = canvas.commands.type(i);
+      if (type != Drawable.DrawableType.RECTANGLE && type != Drawable.DrawableType.ELLIPSE) {
+        throw new IllegalStateException("element is not a shape");
+      }
+      canvas.commands.setShapeSettings(i, shapeSettings);
+    }
+
+    /**
+     * Draw the element, which must be an image, with the given settings from now on.
+     * @throws IllegalStateException if the element is not an image.
+     */
+    public void restyle(ImageSettings imgSettings) {
+      Objects.requireNonNull(imgSettings);
+      int i = index();
+      if (canvas.commands.type(i) != Drawable.DrawableType.IMAGE) {
+        throw new IllegalStateException("element is not an image");
+      }
+      canvas.commands.setImageSize(i, imgSettings.width(), imgSettings.height());
+    }
+
+    /** Remove the element from its canvas. */
+    public void remove() {
+      canvas.commands.remove(index());
+    }
+
+    private int index() {
+      int i = canvas.commands.indexOf(id, stamp);
+      if (i < 0) throw new IllegalStateException("element has been removed");
+      return i;
+    }
   }
 
   /**
    * Clear the canvas of all elements drawn on it by filling
-   * it with the provided color.
+   * it with the provided color. On a retained canvas, this invalidates
+   * every {@link Handle} to its elements.
    *
    * @param color The color with which to fill the canvas.
    */
   public void fill(java.awt.Color color) {
     Objects.requireNonNull(color);
-    drawables.clear();
-    positions.clear();
-    backgroundColor = color;
+    commands.clear();
+    commands.setBackground(color.getRGB());
   }
 
-  // Impose shape settings as global drawing settings.
-  // Not externally accessible! Just used by us when committing to the actual canvas.
-  private void setGlobalShapeSettings(PApplet app, ShapeSettings settings) {
-    if (settings.strokeWeight() != 0) {
-      app.strokeWeight((float) settings.strokeWeight());
-      app.stroke(settings.strokeColor().getRGB());
-    } else {
-      app.noStroke();
+  // Internally-used function that flushes the drawn entities out to the screen.
+  // Drawing state is applied through the given RenderState, which skips redundant
+  // calls and counts what was drawn during this commit.
+  void commit(RenderState state, RenderCache cache) {
+    cache.beginFrame();
+    state.reset();
+    state.resetCounters();
+    enterPath();
+    try {
+      commitCompiled(state, cache, 0, 0, 0, width, height);
+    } finally {
+      onPath = false;
     }
-    java.awt.Color c = settings.fillColor();
-    app.colorMode(PApplet.RGB);
-    app.fill(c.getRed(), c.getGreen(), c.getBlue(), c.getAlpha());
   }
 
-  // Internally-used function that flushes the drawn entities out to the screen.
-  void commit(PApplet app) {
-    commitAt(app, 0, 0, width, height, new HashSet<>());
+  // Internally-used function that lists the drawn entities into the given list, as
+  // commit would draw them onto graphics of the given size, and clears the canvases
+  // as if they had been committed. The render cache is not used. Counts what was drawn
+  // through the given RenderState, which is otherwise left alone.
+  void flatten(FlatCommands out, RenderState state, int targetWidth, int targetHeight) {
+    state.resetCounters();
+    enterPath();
+    try {
+      compile(out, state, null, targetWidth, targetHeight, 0, 0, 0, width, height);
+    } finally {
+      onPath = false;
+    }
+  }
+
+  // Mark this canvas as being on the path from the main canvas to the canvas being
+  // visited, failing if it already is, as then it has been drawn within itself. The
+  // caller clears the mark once it has visited the canvas.
+  private void enterPath() {
+    if (onPath) {
+      throw new IllegalStateException("The created main canvas has a canvas drawn as a sub-canvas of itself.");
+    }
+    onPath = true;
+  }
+
+  // Draw this canvas, which is on the path already, at the given position near the top
+  // left corner of the state's graphics, cut off at the given size: compile it (and the
+  // canvases drawn on it) and draw the result.
+  private void commitCompiled(RenderState state, RenderCache cache, int depth, double x, double y,
+                              double visibleWidth, double visibleHeight) {
+    FlatCommands compiled = state.compiled();
+    PGraphics g = state.graphics();
+    compile(compiled, state, cache, g.width, g.height, depth, x, y, visibleWidth, visibleHeight);
+    compiled.draw(state);
+    compiled.clear();
+  }
+
+  // A canvas on the path from the canvas being compiled to the element being listed,
+  // with what compile() needs to continue listing its elements once those of a canvas
+  // drawn on it are listed (or, likewise, a canvas being hashed by contentHash() or
+  // handed over by publish()). Kept in an array that is reused from frame to frame, in
+  // place of the Java stack, so that deep nesting costs neither recursion nor allocation.
+  private static final class CompileFrame {
+    Canvas canvas;
+    // Whether the canvas is culled or drawn from the render cache, and so only has
+    // to be cleared (along with the canvases drawn on it) as if it had been committed.
+    boolean discarding;
+    int depth;
+    // The position of the canvas and the bottom right corner of the area it may draw in.
+    double xLo, yLo, xHi, yHi;
+    // The clip rectangle its elements are drawn within.
+    float clipX, clipY, clipWidth, clipHeight;
+    // The part of the canvas that can actually be seen, relative to the canvas.
+    double visibleLeft, visibleTop, visibleRight, visibleBottom;
+    // The elements are listed in this order (or in recorded order if null), next
+    // being the position in the order of the next one.
+    int[] order;
+    int count, next;
+    // The hash of the elements so far, when the canvas is being hashed; see contentHash().
+    long hash;
+  }
+
+  // Internally-used function that lists the drawn entities of this canvas, which is
+  // on the path already, and of the canvases drawn on it into the given list, with
+  // absolute positions and the clip rectangle each is drawn within, and clears the
+  // canvases as if they had been committed. Canvases that should be cached are rendered
+  // to the render cache and listed as its images, unless the cache is null. This canvas
+  // is placed at (originX, originY) on the target, and cut off at the given size like a
+  // canvas cut off by the one it is drawn on. Walks the canvases with an explicit stack,
+  // and fails if we encounter a cycle.
+  private void compile(FlatCommands out, RenderState state, RenderCache cache, int targetWidth, int targetHeight,
+                       int depth, double originX, double originY, double visibleWidth, double visibleHeight) {
+    out.clear();
+    if (compileStack == null) compileStack = new CompileFrame[8];
+    int top = 0;
+    // The canvas itself draws its background under the whole target.
+    push(compileStack, top++, this, false, depth, originX, originY, originX + visibleWidth,
+        originY + visibleHeight, 0, 0, targetWidth, targetHeight, targetWidth, targetHeight, out, state);
+    // A canvas that is on the path, but not yet on the stack.
+    Canvas entered = null;
+    try {
+      while (top > 0) {
+        CompileFrame frame = compileStack[top - 1];
+        Canvas owner = frame.canvas;
+        CommandBuffer commands = owner.published;
+        if (frame.next == frame.count) {
+          // Clear the canvas after listing it, unless it is retained. The buffer keeps
+          // its arrays for the next frame.
+          if (!owner.retained) commands.clear();
+          if (top > 1) owner.onPath = false;
+          frame.canvas = null;
+          frame.order = null;
+          top--;
+          continue;
+        }
+        int i = frame.order == null ? frame.next : frame.order[frame.next];
+        frame.next++;
+        if (commands.isRemoved(i)) continue;
+        Drawable.DrawableType type = commands.type(i);
+        if (frame.discarding) {
+          if (type == Drawable.DrawableType.CANVAS) {
+            Canvas canvas = commands.canvas(i);
+            canvas.enterPath();
+            pushDiscarding(top++, canvas);
+          }
+          continue;
+        }
+
+        // Skip elements that lie entirely outside of the visible rectangle.
+        if (commands.right(i) <= frame.visibleLeft || commands.left(i) >= frame.visibleRight
+            || commands.bottom(i) <= frame.visibleTop || commands.top(i) >= frame.visibleBottom) {
+          state.countCulled(1);
+          if (type == Drawable.DrawableType.CANVAS) {
+            // A culled canvas is still cleared, as if it had been committed.
+            Canvas canvas = commands.canvas(i);
+            canvas.enterPath();
+            pushDiscarding(top++, canvas);
+          }
+          continue;
+        }
+
+        Instances instances = commands.instances(i);
+        if (instances == null) state.countDrawn(type);
+        boolean centered = commands.drawMode(i) == Position.DrawMode.CENTER;
+        float x = (float) (frame.xLo + commands.x(i));
+        float y = (float) (frame.yLo + commands.y(i));
+        float w = commands.width(i), h = commands.height(i);
+        switch (type) {
+          case IMAGE: {
+            Image img = commands.image(i);
+            if (img.isReady()) {
+              // A NaN size means that no size was given, so draw at the image's own size.
+              if (Float.isNaN(w) || Float.isNaN(h)) {
+                w = img.pixelWidth();
+                h = img.pixelHeight();
+              }
+              out.addImage(img, x, y, centered, w, h, frame.clipX, frame.clipY, frame.clipWidth, frame.clipHeight);
+            } else if (!Float.isNaN(w) && !Float.isNaN(h)) {
+              // Draw a placeholder until the image has loaded, if we know how big it will be.
+              out.addShape(FlatCommands.RECTANGLE, x, y, centered, w, h, Image.PLACEHOLDER_COLOR, 0, 0,
+                  frame.clipX, frame.clipY, frame.clipWidth, frame.clipHeight);
+            }
+            break;
+          }
+
+          case ELLIPSE:
+          case RECTANGLE: {
+            byte kind = type == Drawable.DrawableType.ELLIPSE ? FlatCommands.ELLIPSE : FlatCommands.RECTANGLE;
+            if (instances == null) {
+              out.addShape(kind, x, y, centered, w, h,
+                  commands.fillColor(i), commands.strokeColor(i), commands.strokeWeight(i),
+                  frame.clipX, frame.clipY, frame.clipWidth, frame.clipHeight);
+            } else {
+              compileInstances(out, state, frame, i, kind, instances, x, y);
+            }
+            break;
+          }
+
+          case CANVAS: {
+            Canvas canvas = commands.canvas(i);
+            // Uh-oh! Fails if the canvas is drawn within itself.
+            canvas.enterPath();
+            entered = canvas;
+            double dx = centered ? commands.x(i) - canvas.width() / 2 : commands.x(i);
+            double dy = centered ? commands.y(i) - canvas.height() / 2 : commands.y(i);
+            double xLoNew = frame.xLo + dx;
+            double yLoNew = frame.yLo + dy;
+            double xHiNew = Math.min(frame.xHi, xLoNew + canvas.width());
+            double yHiNew = Math.min(frame.yHi, yLoNew + canvas.height());
+            if (cache != null) {
+              long hash = contentHash(canvas, cache.frame(), top);
+              // The canvas's elements are clipped to the canvas, not to its parent, so one
+              // that sticks out to the left or top of its parent (unless only off the target)
+              // cannot be drawn from an image clipped to the parent; nor can one that is cut
+              // off entirely.
+              double effectiveWidth = xHiNew - xLoNew, effectiveHeight = yHiNew - yLoNew;
+              boolean within = (xLoNew >= frame.xLo || frame.xLo <= 0) && (yLoNew >= frame.yLo || frame.yLo <= 0)
+                  && effectiveWidth > 0 && effectiveHeight > 0;
+              if (!canvas.shouldCache(hash, cache)) {
+                cache.invalidate(canvas);
+              } else if (within) {
+                // Draw the canvas from its cached offscreen image, rendering the image first
+                // if it is missing or stale, unless the canvas cannot be cached. The image
+                // is drawn at whole pixels, with the canvas rendered onto it at the rest of
+                // its position and cut off where it is drawn cut off, so that it has the pixels
+                // the canvas would have drawn. Like the background, the image is drawn within
+                // the clip rectangle of the parent: the elements were already clipped to the
+                // canvas when rendering it.
+                double imageX = Math.floor(xLoNew), imageY = Math.floor(yLoNew);
+                double offsetX = xLoNew - imageX, offsetY = yLoNew - imageY;
+                PGraphics image = cache.lookup(canvas, hash, offsetX, offsetY, effectiveWidth, effectiveHeight);
+                boolean rendered = image == null;
+                if (rendered) {
+                  image = canvas.renderCached(state, cache, hash, frame.depth + 1, offsetX, offsetY, effectiveWidth,
+                      effectiveHeight);
+                }
+                if (image != null) {
+                  out.addRendered(image, (float) imageX, (float) imageY,
+                      frame.clipX, frame.clipY, frame.clipWidth, frame.clipHeight);
+                  if (rendered) {
+                    canvas.onPath = false;
+                  } else {
+                    // The commands are not listed, but have to be cleared as if they were.
+                    pushDiscarding(top++, canvas);
+                  }
+                  entered = null;
+                  break;
+                }
+              }
+            }
+            push(ensureFrame(top), top++, canvas, false, frame.depth + 1, xLoNew, yLoNew, xHiNew, yHiNew,
+                frame.clipX, frame.clipY, frame.clipWidth, frame.clipHeight, targetWidth, targetHeight, out, state);
+            entered = null;
+            break;
+          }
+
+          default:
+            break;
+        }
+      }
+    } finally {
+      // If we failed, unmark the canvases that were being listed.
+      for (int k = 1; k < top; k++) compileStack[k].canvas.onPath = false;
+      if (entered != null) entered.onPath = false;
+    }
   }
 
-  // Internally-used function that flushes the drawn entities out to the screen
-  // within the bounding box given by the coordinates, and failing if we encounter
-  // a cycle.
-  private void commitAt(PApplet app, double xLo, double yLo, double xHi, double yHi, Set<Canvas> seen) {
-    assert (drawables.size() == positions.size());
+  // Start listing a canvas drawn within the area given by the coordinates, where the clip
+  // rectangle of its parent is given by the parentClip coordinates.
+  private static void push(CompileFrame[] stack, int top, Canvas canvas, boolean discarding, int depth,
+                           double xLo, double yLo, double xHi, double yHi,
+                           float parentClipX, float parentClipY, float parentClipWidth, float parentClipHeight,
+                           int targetWidth, int targetHeight, FlatCommands out, RenderState state) {
+    if (stack[top] == null) stack[top] = new CompileFrame();
+    CompileFrame frame = stack[top];
+    CommandBuffer commands = canvas.published;
+    frame.canvas = canvas;
+    frame.discarding = discarding;
+    frame.depth = depth;
+    frame.next = 0;
+    frame.order = null;
+    frame.count = commands.size();
+    if (discarding) return;
+    // The canvases being drawn are those on the path from the main canvas to this one.
+    state.countDepth(depth);
 
     // If a canvas is nested within another canvas, its actual width on the screen may be
     // smaller than the user-specified width. (This happens if the nested canvas would
     // extend outside the boundary imposed by the enclosing canvas.)
     // effectiveWidth <= width
-    double effectiveWidth = Math.min(width, xHi - xLo);
-    double effectiveHeight = Math.min(height, yHi - yLo);
-
-    // Draw a rectangle for the canvas.
-    if (backgroundColor != null) {
-      app.rectMode(PApplet.CORNER);
-      app.fill(backgroundColor.getRGB());
-      app.noStroke();
-      app.rect(
-          (float) xLo,
-          (float) yLo,
-          (float) effectiveWidth,
-          (float) effectiveHeight);
-    }
+    double effectiveWidth = Math.min(canvas.width, xHi - xLo);
+    double effectiveHeight = Math.min(canvas.height, yHi - yLo);
+    frame.xLo = xLo;
+    frame.yLo = yLo;
+    frame.xHi = xHi;
+    frame.yHi = yHi;
 
+    // The background is drawn before the canvas sets its own clip rectangle.
+    if (commands.hasBackground()) {
+      out.addShape(FlatCommands.RECTANGLE, (float) xLo, (float) yLo, false, (float) effectiveWidth,
+          (float) effectiveHeight, commands.background(), 0, 0,
+          parentClipX, parentClipY, parentClipWidth, parentClipHeight);
+    }
     // Only allow drawing within a subrectangle.
-    app.imageMode(PApplet.CORNER);
-    app.clip(
-        (float) xLo,
-        (float) yLo,
-        (float) effectiveWidth,
-        (float) effectiveHeight);
-
-    for (int i = 0; i < drawables.size(); i++) {
-      Drawable drawable = drawables.get(i);
-      Position pos = positions.get(i);
-
-      // Select whether the drawn thing is to be centered or left-aligned.
-      Position.DrawMode drawMode = pos.drawMode();
-
-      switch (drawable.type()) {
-        case IMAGE: {
-          Optional<ImageSettings> imgSettingsOpt = drawable.imageSettings();
-          PImage image = drawable.image().image;
-          app.imageMode(drawMode.processingDrawMode());
-          if (imgSettingsOpt.isPresent()) {
-            var imgSettings = imgSettingsOpt.get();
-            app.image(image, 
-                (float) (xLo + pos.x()),
-                (float) (yLo + pos.y()),
-                (float) imgSettings.width(),
-                (float) imgSettings.height());
-          } else {
-            app.image(image, (float) (xLo + pos.x()), (float) (yLo + pos.y()));
-          }
-          break;
-        }
+    frame.clipX = (float) xLo;
+    frame.clipY = (float) yLo;
+    frame.clipWidth = (float) effectiveWidth;
+    frame.clipHeight = (float) effectiveHeight;
 
-        case ELLIPSE: {
-          setGlobalShapeSettings(app, drawable.shapeSettings());
-          app.ellipseMode(drawMode.processingDrawMode());
-          Shape shape = drawable.shape();
-          app.ellipse(
-              (float) (xLo + pos.x()),
-              (float) (yLo + pos.y()),
-              (float) shape.width(),
-              (float) shape.height());
-          break;
-        }
+    // The part of the canvas that can actually be seen: within the clip rectangle,
+    // and within the graphics we draw to. (Relative to the canvas.)
+    frame.visibleLeft = Math.max(0, -xLo);
+    frame.visibleTop = Math.max(0, -yLo);
+    frame.visibleRight = Math.min(effectiveWidth, targetWidth - xLo);
+    frame.visibleBottom = Math.min(effectiveHeight, targetHeight - yLo);
+
+    // Elements are listed in the recorded order, or grouped by their settings. If
+    // the canvas is indexed, only the visible elements are looked at (in recorded order).
+    SpatialIndex index = canvas.publishedIndex();
+    if (index != null) {
+      index.update(commands);
+      frame.count = index.query(commands, frame.visibleLeft, frame.visibleTop, frame.visibleRight,
+          frame.visibleBottom);
+      frame.order = index.results();
+      state.countCulled(commands.size() - frame.count);
+    } else if (canvas.orderIndependent) {
+      frame.order = commands.materialOrder();
+    }
+  }
 
-        case RECTANGLE: {
-          setGlobalShapeSettings(app, drawable.shapeSettings());
-          app.rectMode(drawMode.processingDrawMode());
-          Shape shape = drawable.shape();
-          app.rect(
-              (float) (xLo + pos.x()),
-              (float) (yLo + pos.y()),
-              (float) shape.width(),
-              (float) shape.height());
-          break;
+  // Start clearing a canvas (on this canvas's stack) as if it had been committed.
+  private void pushDiscarding(int top, Canvas canvas) {
+    push(ensureFrame(top), top, canvas, true, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, null, null);
+  }
+
+  // Make room for a frame at the given position of this canvas's stack.
+  private CompileFrame[] ensureFrame(int top) {
+    if (top == compileStack.length) compileStack = Arrays.copyOf(compileStack, top * 2);
+    return compileStack;
+  }
+
+  // List the instances of the i-th command of the frame's canvas, a rectangle or an
+  // ellipse, at their positions relative to (x, y), skipping those that lie entirely
+  // outside of the visible rectangle (relative to the canvas).
+  private static void compileInstances(FlatCommands out, RenderState state, CompileFrame frame, int i, byte kind,
+                                       Instances instances, float x, float y) {
+    CommandBuffer commands = frame.canvas.published;
+    float w = commands.width(i), h = commands.height(i), strokeWeight = commands.strokeWeight(i);
+    boolean centered = commands.drawMode(i) == Position.DrawMode.CENTER;
+    // The offset of the top left corner of an instance's bounds from its position.
+    float offsetX = (centered ? -w / 2 : 0) - strokeWeight / 2;
+    float offsetY = (centered ? -h / 2 : 0) - strokeWeight / 2;
+    int listed = 0;
+    for (int k = 0; k < instances.count(); k++) {
+      float left = commands.x(i) + instances.x(k) + offsetX;
+      float top = commands.y(i) + instances.y(k) + offsetY;
+      if (left + w + strokeWeight <= frame.visibleLeft || left >= frame.visibleRight
+          || top + h + strokeWeight <= frame.visibleTop || top >= frame.visibleBottom) {
+        continue;
+      }
+      out.addShape(kind, x + instances.x(k), y + instances.y(k), centered, w, h,
+          commands.fillColor(i), commands.strokeColor(i), strokeWeight,
+          frame.clipX, frame.clipY, frame.clipWidth, frame.clipHeight);
+      listed++;
+    }
+    state.countDrawn(commands.type(i), listed);
+    state.countCulled(instances.count() - listed);
+  }
+
+  // Internally-used function that hands the commands recorded since the last call
+  // over to be committed, for this canvas and (recursively) the canvases drawn on it,
+  // so that the next frame can be recorded while this one is committed. The commands
+  // of a canvas that is not retained are handed over as they are, and it records into
+  // the buffer that was committed before; those of a retained canvas are copied if
+  // they changed, as they are kept and may still be edited. Must be called while no
+  // canvas is being recorded or committed.
+  void publish() {
+    // Each publish() has its own epoch, by which canvases drawn more than once are only
+    // handed over once. The canvases are walked with the compile stack.
+    long epoch = PUBLISH_EPOCHS.incrementAndGet();
+    if (compileStack == null) compileStack = new CompileFrame[8];
+    int top = 0;
+    publish(this, epoch, top++);
+    while (top > 0) {
+      CompileFrame frame = compileStack[top - 1];
+      CommandBuffer published = frame.canvas.published;
+      if (frame.next == frame.count) {
+        frame.canvas = null;
+        top--;
+        continue;
+      }
+      int i = frame.next++;
+      if (!published.isRemoved(i) && published.type(i) == Drawable.DrawableType.CANVAS) {
+        Canvas canvas = published.canvas(i);
+        if (canvas.publishedEpoch != epoch) {
+          ensureFrame(top);
+          publish(canvas, epoch, top++);
         }
+      }
+    }
+  }
 
-        case CANVAS:
-          Canvas canvas = drawable.canvas();
-          // Uh-oh!
-          if (seen.contains(canvas)) {
-            throw new IllegalStateException("The created main canvas has a canvas drawn as a sub-canvas of itself.");
-          }
+  // Hand over the commands of a canvas, and start walking the canvases drawn on it.
+  private void publish(Canvas canvas, long epoch, int top) {
+    canvas.publishedEpoch = epoch;
+    if (canvas.retained) {
+      if (canvas.published == canvas.commands) canvas.published = new CommandBuffer();
+      if (canvas.published.version() != canvas.commands.version()) canvas.published.copyFrom(canvas.commands);
+    } else {
+      CommandBuffer spare = canvas.published == canvas.commands ? new CommandBuffer() : canvas.published;
+      canvas.published = canvas.commands;
+      canvas.commands = spare;
+      if (spare.size() > 0 || spare.hasBackground()) spare.clear();
+    }
+    if (compileStack[top] == null) compileStack[top] = new CompileFrame();
+    CompileFrame frame = compileStack[top];
+    frame.canvas = canvas;
+    frame.next = 0;
+    frame.count = canvas.published.size();
+  }
 
-          double dx, dy;
-          if (drawMode == Position.DrawMode.CENTER) {
-            dx = pos.x() - canvas.width() / 2;
-            dy = pos.y() - canvas.height() / 2;
-          } else {
-            dx = pos.x();
-            dy = pos.y();
-          }
+  // The spatial index over the commands that are committed, or null if not enabled.
+  private SpatialIndex publishedIndex() {
+    if (index == null || published == commands) return index;
+    if (publishedIndex == null) publishedIndex = new SpatialIndex(width, height);
+    return publishedIndex;
+  }
 
-          // Figure out new coordinates
-          double xLoNew = xLo + dx;
-          double xHiNew = Math.min(xHi, xLoNew + canvas.width());
-          double yLoNew = yLo + dy;
-          double yHiNew = Math.min(yHi, yLoNew + canvas.height());
-          seen.add(canvas);
-          canvas.commitAt(app, xLoNew, yLoNew, xHiNew, yHiNew, seen);
-          seen.remove(canvas);
-
-          // We have to re-set clip after recursive call to the canvas.
-          app.imageMode(PApplet.CORNER);
-          app.clip(
-              (float) xLo,
-              (float) yLo,
-              (float) effectiveWidth,
-              (float) effectiveHeight);
-          break;
+  // A hash of everything that determines what the given canvas looks like: its
+  // background, its commands and (recursively) the canvases drawn on it. Memoised
+  // per frame, and fails like compile if we encounter a cycle. The canvases are
+  // walked with the frames of this canvas's compile stack from the given position
+  // up, so that hashing a canvas drawn on one being compiled leaves those alone.
+  private long contentHash(Canvas canvas, long frame, int base) {
+    if (canvas.hashedIn(frame)) return canvas.contentHash;
+    CompileFrame[] stack = ensureFrame(base);
+    int top = base;
+    startHashing(stack, top, canvas);
+    top++;
+    try {
+      while (true) {
+        CompileFrame hashed = stack[top - 1];
+        CommandBuffer commands = hashed.canvas.published;
+        if (hashed.next == hashed.count) {
+          Canvas owner = hashed.canvas;
+          owner.contentHash = hashed.hash;
+          owner.contentHashFrame = frame;
+          owner.contentHashVersion = commands.version();
+          owner.hashing = false;
+          hashed.canvas = null;
+          top--;
+          if (top == base) return owner.contentHash;
+          stack[top - 1].hash = mix(stack[top - 1].hash, owner.contentHash);
+          continue;
+        }
+        int i = hashed.next++;
+        if (commands.isRemoved(i)) continue;
+        Drawable.DrawableType type = commands.type(i);
+        long h = hashed.hash;
+        h = mix(h, type.ordinal());
+        h = mix(h, commands.drawMode(i).ordinal());
+        h = mix(h, Float.floatToIntBits(commands.x(i)));
+        h = mix(h, Float.floatToIntBits(commands.y(i)));
+        h = mix(h, Float.floatToIntBits(commands.width(i)));
+        h = mix(h, Float.floatToIntBits(commands.height(i)));
+        switch (type) {
+          case IMAGE:
+            h = mix(h, System.identityHashCode(commands.image(i)));
+            h = mix(h, commands.image(i).isReady() ? 1 : 0);
+            break;
+          case CANVAS: {
+            Canvas child = commands.canvas(i);
+            h = mix(h, System.identityHashCode(child));
+            if (child.hashedIn(frame)) {
+              h = mix(h, child.contentHash);
+            } else {
+              // The hash of the child is mixed in once it is computed.
+              hashed.hash = h;
+              stack = ensureFrame(top);
+              startHashing(stack, top, child);
+              top++;
+              continue;
+            }
+            break;
+          }
+          default:
+            h = mix(h, commands.fillColor(i));
+            h = mix(h, commands.strokeColor(i));
+            h = mix(h, Float.floatToIntBits(commands.strokeWeight(i)));
+            if (commands.instances(i) != null) h = mix(h, commands.instances(i).contentHash());
+            break;
+        }
+        hashed.hash = h;
+      }
+    } finally {
+      // If we failed, the canvases that were being hashed are not anymore.
+      for (int k = base; k < top; k++) {
+        stack[k].canvas.hashing = false;
+        stack[k].canvas = null;
       }
     }
+  }
+
+  // Whether the memoised content hash is that of the current commands in the given frame.
+  private boolean hashedIn(long frame) {
+    return contentHashFrame == frame && contentHashVersion == published.version();
+  }
+
+  // Start hashing a canvas, failing if it is being hashed already.
+  private static void startHashing(CompileFrame[] stack, int top, Canvas canvas) {
+    if (canvas.hashing) {
+      throw new IllegalStateException("The created main canvas has a canvas drawn as a sub-canvas of itself.");
+    }
+    canvas.hashing = true;
+    if (stack[top] == null) stack[top] = new CompileFrame();
+    CompileFrame frame = stack[top];
+    frame.canvas = canvas;
+    frame.next = 0;
+    frame.count = canvas.published.size();
+    frame.hash = mix(canvas.published.hasBackground() ? canvas.published.background() : 0x5bd1e995L,
+        canvas.orderIndependent ? 1 : 0);
+  }
+
+  private static long mix(long h, long v) {
+    return (h ^ v) * 0x9e3779b97f4a7c15L + (h >>> 29);
+  }
+
+  // Whether this canvas should be drawn from the render cache this frame.
+  // Called once per commit of the canvas, as this tracks unchanged commits.
+  private boolean shouldCache(long contentHash, RenderCache cache) {
+    if (contentHash == lastCommittedHash) {
+      unchangedCommits++;
+    } else {
+      lastCommittedHash = contentHash;
+      unchangedCommits = 0;
+    }
+    return cacheable || cache.cachesAutomatically() && unchangedCommits >= RenderCache.AUTO_CACHE_AFTER;
+  }
 
-    // Clear canvas after commit.
-    drawables.clear();
-    positions.clear();
-    backgroundColor = null;
+  // Render this canvas, which is on the path already, to a new offscreen image in the
+  // render cache, at the given fractions of a pixel from its top left corner and cut off
+  // at the given size. Returns the image, or null if the canvas cannot be cached.
+  private PGraphics renderCached(RenderState state, RenderCache cache, long contentHash, int depth,
+                                 double offsetX, double offsetY, double visibleWidth, double visibleHeight) {
+    PGraphics image = cache.reserve(this, contentHash, offsetX, offsetY, visibleWidth, visibleHeight);
+    if (image == null) return null;
+    RenderState imageState = new RenderState(image);
+    commitCompiled(imageState, cache, depth, offsetX, offsetY, visibleWidth, visibleHeight);
+    image.endDraw();
+    state.addCounters(imageState);
+    return image;
   }
 }
@@ -10,6 +10,10 @@ package processingwrapper;
 public class Circle extends Ellipse {
  
   private final double radius;
+
+  // Instances are interned (see Interned), so that asking for a circle with the
+  // same radius again returns the same instance rather than a new one.
+  private static final Circle[] INTERNED = new Circle[Interned.SLOTS];
   
   private Circle(double radius) {
     super(2*radius, 2*radius);
@@ -18,11 +22,18 @@ public class Circle extends Ellipse {
   }
   
   /**
-   * Create a new circle with the specified radius.
+   * Create a circle with the specified radius. Asking for the same size again may
+   * return the same instance.
    */
   public static Circle of(double radius) {
     if (!isPositive(radius)) throw new IllegalArgumentException("radius");
-    return new Circle(radius);
+    int slot = Interned.slot(Double.doubleToLongBits(radius), 0, 0);
+    Circle circle = INTERNED[slot];
+    if (circle == null || circle.radius != radius) {
+      circle = new Circle(radius);
+      INTERNED[slot] = circle;
+    }
+    return circle;
   }
   
   /**
@@ -0,0 +1,516 @@
+package processingwrapper;
+
+import java.util.Arrays;
+
+/**
+ * The recorded draw calls of a single {@link Canvas}, stored as a
+ * struct of parallel primitive arrays rather than as a list of
+ * objects. Recording a draw call only writes into these arrays, which
+ * grow geometrically and are reset (not reallocated) between frames,
+ * so a canvas that records a similar number of elements each frame
+ * stops allocating once it has warmed up.
+ *
+ * Every recorded command also gets an id that keeps referring to it
+ * until the command is removed or the buffer is cleared, even if later
+ * removals compact the arrays and shift the command to another index.
+ * Ids are recycled; a (id, stamp) pair identifies one command for good.
+ * Retained canvases hand these pairs out (inside a {@link Canvas.Handle})
+ * so that a command can be edited after it has been recorded.
+ *
+ * Not externally accessible! Only used by {@link Canvas}.
+ */
+final class CommandBuffer {
+  private static final int INITIAL_CAPACITY = 16;
+  // Type code of a command that was removed but not yet compacted away.
+  private static final byte REMOVED = -1;
+  // Compact once at least this many commands, and half the buffer, are removed.
+  private static final int MIN_REMOVED_TO_COMPACT = 16;
+  // Layout of the sort keys used by materialOrder(): type, material hash, index.
+  private static final int INDEX_BITS = 24;
+  private static final int MATERIAL_BITS = 37;
+
+  // Cached so that decoding a command does not clone the values() array.
+  private static final Drawable.DrawableType[] TYPES = Drawable.DrawableType.values();
+  private static final Position.DrawMode[] DRAW_MODES = Position.DrawMode.values();
+  private static final byte CENTER = (byte) Position.DrawMode.CENTER.ordinal();
+
+  private int size;
+
+  private byte[] types;
+  private byte[] drawModes;
+  private float[] xs, ys, widths, heights;
+  private int[] fillColors, strokeColors;
+  private float[] strokeWeights;
+  // The Image or Canvas referenced by IMAGE and CANVAS commands; for shapes, the
+  // Instances if the shape is drawn at several positions, and null otherwise.
+  private Object[] refs;
+
+  // ids[i] is the id of the command at index i; indexOfId[id] is its index, or -1 once removed.
+  private int[] ids;
+  private int[] indexOfId;
+  // Bumped every time an id is released, so that stale (id, stamp) pairs can be detected.
+  private int[] idStamps;
+  private int[] freeIds;
+  private int freeIdCount;
+  private int nextId;
+  private int removedCount;
+
+  private boolean hasBackground;
+  private int backgroundColor;
+
+  // Bumped by every change to the buffer.
+  private long version;
+
+  // Reused by materialOrder(), which recomputes them only when the version changes.
+  private long[] sortKeys = new long[0];
+  private int[] order = new int[0];
+  private long orderVersion = -1;
+
+  CommandBuffer() {
+    types = new byte[INITIAL_CAPACITY];
+    drawModes = new byte[INITIAL_CAPACITY];
+    xs = new float[INITIAL_CAPACITY];
+    ys = new float[INITIAL_CAPACITY];
+    widths = new float[INITIAL_CAPACITY];
+    heights = new float[INITIAL_CAPACITY];
+    fillColors = new int[INITIAL_CAPACITY];
+    strokeColors = new int[INITIAL_CAPACITY];
+    strokeWeights = new float[INITIAL_CAPACITY];
+    refs = new Object[INITIAL_CAPACITY];
+    ids = new int[INITIAL_CAPACITY];
+    indexOfId = new int[INITIAL_CAPACITY];
+    idStamps = new int[INITIAL_CAPACITY];
+    freeIds = new int[INITIAL_CAPACITY];
+  }
+
+  /**
+   * @return the number of recorded commands, including removed commands
+   * that have not been compacted away yet (see {@link #isRemoved}).
+   */
+  int size() {
+    return size;
+  }
+
+  // Record a rectangle or ellipse, returning its index.
+  int addShape(Shape shape, ShapeSettings settings, Position pos) {
+    return addShape(shape, settings, pos.x(), pos.y(), pos.drawMode());
+  }
+
+  int addShape(Shape shape, ShapeSettings settings, double x, double y, Position.DrawMode drawMode) {
+    int i = append(shape.type(), x, y, drawMode);
+    setShapeSettings(i, settings);
+    widths[i] = (float) shape.width();
+    heights[i] = (float) shape.height();
+    return i;
+  }
+
+  // Record copies of a rectangle or ellipse at each of the positions, as one command, returning its index.
+  int addInstances(Shape shape, ShapeSettings settings, Position.DrawMode drawMode, Instances instances) {
+    int i = addShape(shape, settings, 0, 0, drawMode);
+    refs[i] = instances;
+    return i;
+  }
+
+  // Record an image, returning its index. A NaN width and height means "the size of the image".
+  int addImage(Image image, double width, double height, Position pos) {
+    return addImage(image, width, height, pos.x(), pos.y(), pos.drawMode());
+  }
+
+  int addImage(Image image, double width, double height, double x, double y, Position.DrawMode drawMode) {
+    int i = append(Drawable.DrawableType.IMAGE, x, y, drawMode);
+    setImageSize(i, width, height);
+    refs[i] = image;
+    return i;
+  }
+
+  // Record a nested canvas, returning its index.
+  int addCanvas(Canvas canvas, Position pos) {
+    return addCanvas(canvas, pos.x(), pos.y(), pos.drawMode());
+  }
+
+  int addCanvas(Canvas canvas, double x, double y, Position.DrawMode drawMode) {
+    int i = append(Drawable.DrawableType.CANVAS, x, y, drawMode);
+    widths[i] = (float) canvas.width();
+    heights[i] = (float) canvas.height();
+    refs[i] = canvas;
+    return i;
+  }
+
+  // Reserve the next slot and fill in the fields every command has.
+  private int append(Drawable.DrawableType type, double x, double y, Position.DrawMode drawMode) {
+    if (size == types.length) grow();
+    version++;
+    int i = size++;
+    int id = allocateId();
+    ids[i] = id;
+    indexOfId[id] = i;
+    types[i] = (byte) type.ordinal();
+    fillColors[i] = 0;
+    strokeColors[i] = 0;
+    strokeWeights[i] = 0;
+    setPosition(i, x, y, drawMode);
+    return i;
+  }
+
+  // Overwrite the position of the i-th command.
+  void setPosition(int i, Position pos) {
+    setPosition(i, pos.x(), pos.y(), pos.drawMode());
+  }
+
+  void setPosition(int i, double x, double y, Position.DrawMode drawMode) {
+    version++;
+    drawModes[i] = (byte) drawMode.ordinal();
+    xs[i] = (float) x;
+    ys[i] = (float) y;
+  }
+
+  // Overwrite the colors and stroke of the i-th command, which must be a shape.
+  void setShapeSettings(int i, ShapeSettings settings) {
+    version++;
+    fillColors[i] = settings.fillColor().getRGB();
+    strokeColors[i] = settings.strokeColor().getRGB();
+    strokeWeights[i] = (float) settings.strokeWeight();
+  }
+
+  // Overwrite the drawn size of the i-th command, which must be an image.
+  void setImageSize(int i, double width, double height) {
+    version++;
+    widths[i] = (float) width;
+    heights[i] = (float) height;
+  }
+
+  private int allocateId() {
+    if (freeIdCount > 0) return freeIds[--freeIdCount];
+    if (nextId == indexOfId.length) {
+      indexOfId = Arrays.copyOf(indexOfId, nextId * 2);
+      idStamps = Arrays.copyOf(idStamps, nextId * 2);
+      freeIds = Arrays.copyOf(freeIds, nextId * 2);
+    }
+    return nextId++;
+  }
+
+  private void releaseId(int id) {
+    indexOfId[id] = -1;
+    idStamps[id]++;
+    freeIds[freeIdCount++] = id;
+  }
+
+  /** @return a number that changes whenever the contents of the buffer change. */
+  long version() {
+    return version;
+  }
+
+  /** @return the id of the i-th command. */
+  int id(int i) {
+    return ids[i];
+  }
+
+  /** @return the current stamp of the given id. */
+  int stamp(int id) {
+    return idStamps[id];
+  }
+
+  /**
+   * @return the current index of the command identified by the given id and stamp,
+   * or -1 if that command was removed or cleared.
+   */
+  int indexOf(int id, int stamp) {
+    return idStamps[id] == stamp ? indexOfId[id] : -1;
+  }
+
+  /**
+   * Remove the i-th command. The command is skipped from then on, and the
+   * buffer is compacted once enough of it consists of removed commands.
+   */
+  void remove(int i) {
+    assert(!isRemoved(i));
+    version++;
+    releaseId(ids[i]);
+    types[i] = REMOVED;
+    refs[i] = null;
+    removedCount++;
+    if (removedCount >= MIN_REMOVED_TO_COMPACT && 2 * removedCount >= size) compact();
+  }
+
+  /** @return whether the i-th command has been removed. */
+  boolean isRemoved(int i) {
+    return types[i] == REMOVED;
+  }
+
+  // Slide the remaining commands down over the removed ones, preserving their order.
+  private void compact() {
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      if (types[i] == REMOVED) continue;
+      if (i != j) {
+        types[j] = types[i];
+        drawModes[j] = drawModes[i];
+        xs[j] = xs[i];
+        ys[j] = ys[i];
+        widths[j] = widths[i];
+        heights[j] = heights[i];
+        fillColors[j] = fillColors[i];
+        strokeColors[j] = strokeColors[i];
+        strokeWeights[j] = strokeWeights[i];
+        refs[j] = refs[i];
+        ids[j] = ids[i];
+        indexOfId[ids[j]] = j;
+      }
+      j++;
+    }
+    Arrays.fill(refs, j, size, null);
+    size = j;
+    removedCount = 0;
+  }
+
+  private void grow() {
+    int capacity = types.length * 2;
+    types = Arrays.copyOf(types, capacity);
+    drawModes = Arrays.copyOf(drawModes, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+    widths = Arrays.copyOf(widths, capacity);
+    heights = Arrays.copyOf(heights, capacity);
+    fillColors = Arrays.copyOf(fillColors, capacity);
+    strokeColors = Arrays.copyOf(strokeColors, capacity);
+    strokeWeights = Arrays.copyOf(strokeWeights, capacity);
+    refs = Arrays.copyOf(refs, capacity);
+    ids = Arrays.copyOf(ids, capacity);
+  }
+
+  /** Set the background color (an ARGB int) that is drawn before any command. */
+  void setBackground(int argb) {
+    version++;
+    hasBackground = true;
+    backgroundColor = argb;
+  }
+
+  boolean hasBackground() {
+    return hasBackground;
+  }
+
+  int background() {
+    assert(hasBackground);
+    return backgroundColor;
+  }
+
+  /**
+   * Forget all recorded commands and the background, keeping the
+   * allocated arrays for the next frame.
+   */
+  void clear() {
+    version++;
+    for (int i = 0; i < size; i++) {
+      if (types[i] != REMOVED) releaseId(ids[i]);
+    }
+    // Drop references so that images and canvases drawn last frame can be collected.
+    Arrays.fill(refs, 0, size, null);
+    size = 0;
+    removedCount = 0;
+    hasBackground = false;
+  }
+
+  /**
+   * Make this buffer a copy of the other buffer's commands, background and
+   * version, reusing this buffer's arrays where they are large enough. The
+   * ids of the commands are not copied, so the copy can only be drawn: it
+   * must not be edited or cleared.
+   */
+  void copyFrom(CommandBuffer other) {
+    if (types.length < other.size) {
+      int capacity = other.types.length;
+      types = new byte[capacity];
+      drawModes = new byte[capacity];
+      xs = new float[capacity];
+      ys = new float[capacity];
+      widths = new float[capacity];
+      heights = new float[capacity];
+      fillColors = new int[capacity];
+      strokeColors = new int[capacity];
+      strokeWeights = new float[capacity];
+      refs = new Object[capacity];
+    }
+    int n = other.size;
+    System.arraycopy(other.types, 0, types, 0, n);
+    System.arraycopy(other.drawModes, 0, drawModes, 0, n);
+    System.arraycopy(other.xs, 0, xs, 0, n);
+    System.arraycopy(other.ys, 0, ys, 0, n);
+    System.arraycopy(other.widths, 0, widths, 0, n);
+    System.arraycopy(other.heights, 0, heights, 0, n);
+    System.arraycopy(other.fillColors, 0, fillColors, 0, n);
+    System.arraycopy(other.strokeColors, 0, strokeColors, 0, n);
+    System.arraycopy(other.strokeWeights, 0, strokeWeights, 0, n);
+    System.arraycopy(other.refs, 0, refs, 0, n);
+    if (size > n) Arrays.fill(refs, n, size, null);
+    size = n;
+    removedCount = other.removedCount;
+    hasBackground = other.hasBackground;
+    backgroundColor = other.backgroundColor;
+    version = other.version;
+    orderVersion = -1;
+  }
+
+  /**
+   * @return the indices of the commands, ordered so that commands of the same
+   * type that need the same drawing state (colors, stroke, draw mode, image)
+   * are next to each other. Only the first {@link #size} entries are meaningful,
+   * and the array is reused, so it must not be modified or kept.
+   */
+  int[] materialOrder() {
+    if (orderVersion == version) return order;
+    if (order.length < size) {
+      sortKeys = new long[types.length];
+      order = new int[types.length];
+    }
+    if (size > 1 << INDEX_BITS) {
+      // Too many commands to fit their index into a key; keep the recorded order.
+      for (int i = 0; i < size; i++) order[i] = i;
+    } else {
+      // Sort by (type, material hash, index), packed into a long so that sorting allocates nothing.
+      // Commands whose materials collide just end up interleaved, which is still correct.
+      for (int i = 0; i < size; i++) {
+        long material = materialHash(i) & ((1L << MATERIAL_BITS) - 1);
+        sortKeys[i] = ((long) (types[i] & 0x3) << (INDEX_BITS + MATERIAL_BITS)) | (material << INDEX_BITS) | i;
+      }
+      Arrays.sort(sortKeys, 0, size);
+      for (int k = 0; k < size; k++) order[k] = (int) (sortKeys[k] & ((1 << INDEX_BITS) - 1));
+    }
+    orderVersion = version;
+    return order;
+  }
+
+  // A hash of the drawing state that the i-th command needs.
+  private long materialHash(int i) {
+    long h = drawModes[i];
+    if (refs[i] instanceof Image) {
+      h = h * 31 + System.identityHashCode(refs[i]);
+    } else if (!(refs[i] instanceof Canvas)) {
+      h = h * 31 + fillColors[i];
+      h = h * 31 + strokeColors[i];
+      h = h * 31 + Float.floatToIntBits(strokeWeights[i]);
+    }
+    return h * 0x9e3779b97f4a7c15L;
+  }
+
+  // Accessors for the i-th command.
+  Drawable.DrawableType type(int i) {
+    return TYPES[types[i]];
+  }
+
+  Position.DrawMode drawMode(int i) {
+    return DRAW_MODES[drawModes[i]];
+  }
+
+  float x(int i) {
+    return xs[i];
+  }
+
+  float y(int i) {
+    return ys[i];
+  }
+
+  float width(int i) {
+    return widths[i];
+  }
+
+  float height(int i) {
+    return heights[i];
+  }
+
+  int fillColor(int i) {
+    return fillColors[i];
+  }
+
+  int strokeColor(int i) {
+    return strokeColors[i];
+  }
+
+  float strokeWeight(int i) {
+    return strokeWeights[i];
+  }
+
+  // The bounds of the i-th command, relative to the canvas it was drawn on.
+  // They include the half of the stroke that lies outside of a shape.
+
+  // For instanced shapes, the bounds of all instances.
+
+  float left(int i) {
+    float w = drawnWidth(i);
+    float x = refs[i] instanceof Instances ? xs[i] + ((Instances) refs[i]).minX() : xs[i];
+    return x - (drawModes[i] == CENTER ? w / 2 : 0) - strokeWeights[i] / 2;
+  }
+
+  float top(int i) {
+    float h = drawnHeight(i);
+    float y = refs[i] instanceof Instances ? ys[i] + ((Instances) refs[i]).minY() : ys[i];
+    return y - (drawModes[i] == CENTER ? h / 2 : 0) - strokeWeights[i] / 2;
+  }
+
+  float right(int i) {
+    float spread = refs[i] instanceof Instances ? ((Instances) refs[i]).maxX() - ((Instances) refs[i]).minX() : 0;
+    return left(i) + spread + drawnWidth(i) + strokeWeights[i];
+  }
+
+  float bottom(int i) {
+    float spread = refs[i] instanceof Instances ? ((Instances) refs[i]).maxY() - ((Instances) refs[i]).minY() : 0;
+    return top(i) + spread + drawnHeight(i) + strokeWeights[i];
+  }
+
+  /**
+   * @return whether the point, relative to the canvas, lies on the i-th command
+   * (on any of its instances). Ellipses are tested exactly; everything else by its bounds.
+   */
+  boolean contains(int i, double x, double y) {
+    if (x < left(i) || x > right(i) || y < top(i) || y > bottom(i)) return false;
+    if (!(refs[i] instanceof Instances)) return shapeContains(i, xs[i], ys[i], x, y);
+    Instances instances = (Instances) refs[i];
+    for (int k = 0; k < instances.count(); k++) {
+      if (shapeContains(i, xs[i] + instances.x(k), ys[i] + instances.y(k), x, y)) return true;
+    }
+    return false;
+  }
+
+  // Whether the point lies on the i-th command if it were drawn at the given position.
+  private boolean shapeContains(int i, double atX, double atY, double x, double y) {
+    double w = drawnWidth(i), h = drawnHeight(i);
+    double left = atX - (drawModes[i] == CENTER ? w / 2 : 0) - strokeWeights[i] / 2;
+    double top = atY - (drawModes[i] == CENTER ? h / 2 : 0) - strokeWeights[i] / 2;
+    double right = left + w + strokeWeights[i], bottom = top + h + strokeWeights[i];
+    if (x < left || x > right || y < top || y > bottom) return false;
+    if (type(i) != Drawable.DrawableType.ELLIPSE) return true;
+    double rx = (right - left) / 2, ry = (bottom - top) / 2;
+    double dx = (x - left - rx) / rx, dy = (y - top - ry) / ry;
+    return dx * dx + dy * dy <= 1;
+  }
+
+  // The size the i-th command is drawn at; images without a size are drawn at their own
+  // size, or not at all while they are loading.
+  private float drawnWidth(int i) {
+    float w = widths[i];
+    if (!Float.isNaN(w)) return w;
+    Image image = (Image) refs[i];
+    return image.isReady() ? (float) image.width() : 0;
+  }
+
+  private float drawnHeight(int i) {
+    float h = heights[i];
+    if (!Float.isNaN(h)) return h;
+    Image image = (Image) refs[i];
+    return image.isReady() ? (float) image.height() : 0;
+  }
+
+  Image image(int i) {
+    assert(type(i) == Drawable.DrawableType.IMAGE);
+    return (Image) refs[i];
+  }
+
+  // The instances of the i-th command, or null if it is drawn once.
+  Instances instances(int i) {
+    return refs[i] instanceof Instances ? (Instances) refs[i] : null;
+  }
+
+  Canvas canvas(int i) {
+    assert(type(i) == Drawable.DrawableType.CANVAS);
+    return (Canvas) refs[i];
+  }
+}
@@ -13,6 +13,10 @@ import java.util.Objects;
  * are the same.
  */
 public class Ellipse extends Shape {
+
+  // Instances are interned (see Interned), so that asking for an ellipse with the
+  // same size again returns the same instance rather than a new one.
+  private static final Ellipse[] INTERNED = new Ellipse[Interned.SLOTS];
  
   // package-private so that Circle can instantiate.
   Ellipse(double width, double height) {
@@ -20,14 +24,21 @@ public class Ellipse extends Shape {
   }
   
   /**
-   * Create a new ellipse with the specified width and height.
+   * Create an ellipse with the specified width and height. Asking for the same size again may
+   * return the same instance.
    * @param width The x dimension of the ellipse.
    * @param height The y dimension of the ellipse.
    */
   public static Ellipse of(double width, double height) {
     if (!isPositive(width)) throw new IllegalArgumentException("width");
     if (!isPositive(height)) throw new IllegalArgumentException("height");
-    return new Ellipse(width, height);
+    int slot = Interned.slot(Double.doubleToLongBits(width), Double.doubleToLongBits(height), 0);
+    Ellipse ellipse = INTERNED[slot];
+    if (ellipse == null || ellipse.width != width || ellipse.height != height) {
+      ellipse = new Ellipse(width, height);
+      INTERNED[slot] = ellipse;
+    }
+    return ellipse;
   }
   
   @Override
@@ -0,0 +1,332 @@
+package processingwrapper;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import java.util.Arrays;
+
+/**
+ * The elements of a canvas and all of its sub-canvases, listed in the order
+ * they are drawn in, with absolute coordinates and the clip rectangle each
+ * is drawn within, so that they can be drawn without walking the canvases
+ * again. Produced by {@link Canvas#flatten}. Like {@link CommandBuffer},
+ * the elements are stored in parallel primitive arrays that are reused
+ * from one frame to the next.
+ *
+ * Every element is a rectangle, an ellipse or an image: the backgrounds of
+ * canvases and the placeholders of images that have not loaded yet become
+ * rectangles, and the size of an image drawn without one is filled in. A
+ * canvas drawn from the {@link RenderCache} becomes its rendered image.
+ * Positions and clip rectangles are kept exactly as committing the canvas
+ * would pass them to Processing, so that {@link #draw} draws the same pixels.
+ *
+ * Committing a canvas lists it and draws the list with {@link #draw(RenderState)},
+ * which sets each element's clip rectangle through the {@link RenderState}, so
+ * that the graphics' clip is only changed where it actually differs.
+ *
+ * Not externally accessible! Used when committing a canvas.
+ */
+final class FlatCommands {
+  static final byte RECTANGLE = 0;
+  static final byte ELLIPSE = 1;
+  static final byte IMAGE = 2;
+  static final byte RENDERED = 3;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int size;
+  private byte[] kinds = new byte[INITIAL_CAPACITY];
+  // The position of each element, which is its center or its top left corner.
+  private float[] xs = new float[INITIAL_CAPACITY];
+  private float[] ys = new float[INITIAL_CAPACITY];
+  private boolean[] centered = new boolean[INITIAL_CAPACITY];
+  private float[] widths = new float[INITIAL_CAPACITY];
+  private float[] heights = new float[INITIAL_CAPACITY];
+  private int[] fillColors = new int[INITIAL_CAPACITY];
+  private int[] strokeColors = new int[INITIAL_CAPACITY];
+  private float[] strokeWeights = new float[INITIAL_CAPACITY];
+  // The loaded image drawn by IMAGE elements; null for shapes.
+  private Image[] images = new Image[INITIAL_CAPACITY];
+  // The offscreen image drawn by RENDERED elements; null for others.
+  private PImage[] rendered = new PImage[INITIAL_CAPACITY];
+  // The clip rectangle of each element.
+  private float[] clipXs = new float[INITIAL_CAPACITY];
+  private float[] clipYs = new float[INITIAL_CAPACITY];
+  private float[] clipWidths = new float[INITIAL_CAPACITY];
+  private float[] clipHeights = new float[INITIAL_CAPACITY];
+  // Holds the bounds of each element while drawing a region, so that drawing allocates nothing.
+  private final float[] regionBounds = new float[4];
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    // Drop references so that images drawn last frame can be collected.
+    Arrays.fill(images, 0, size, null);
+    Arrays.fill(rendered, 0, size, null);
+    size = 0;
+  }
+
+  void addShape(byte kind, float x, float y, boolean centered, float width, float height,
+                int fillColor, int strokeColor, float strokeWeight,
+                float clipX, float clipY, float clipWidth, float clipHeight) {
+    int i = add(kind, x, y, centered, width, height, clipX, clipY, clipWidth, clipHeight);
+    fillColors[i] = fillColor;
+    strokeColors[i] = strokeColor;
+    strokeWeights[i] = strokeWeight;
+    images[i] = null;
+    rendered[i] = null;
+  }
+
+  void addImage(Image image, float x, float y, boolean centered, float width, float height,
+                float clipX, float clipY, float clipWidth, float clipHeight) {
+    int i = add(IMAGE, x, y, centered, width, height, clipX, clipY, clipWidth, clipHeight);
+    fillColors[i] = 0;
+    strokeColors[i] = 0;
+    strokeWeights[i] = 0;
+    images[i] = image;
+    rendered[i] = null;
+  }
+
+  // Add a canvas rendered to the given image, drawn at its own size with its top left
+  // corner at (x, y).
+  void addRendered(PImage image, float x, float y, float clipX, float clipY, float clipWidth, float clipHeight) {
+    int i = add(RENDERED, x, y, false, image.width, image.height, clipX, clipY, clipWidth, clipHeight);
+    fillColors[i] = 0;
+    strokeColors[i] = 0;
+    strokeWeights[i] = 0;
+    images[i] = null;
+    rendered[i] = image;
+  }
+
+  private int add(byte kind, float x, float y, boolean centered, float width, float height,
+                  float clipX, float clipY, float clipWidth, float clipHeight) {
+    if (size == kinds.length) grow();
+    int i = size++;
+    kinds[i] = kind;
+    xs[i] = x;
+    ys[i] = y;
+    this.centered[i] = centered;
+    widths[i] = width;
+    heights[i] = height;
+    clipXs[i] = clipX;
+    clipYs[i] = clipY;
+    clipWidths[i] = clipWidth;
+    clipHeights[i] = clipHeight;
+    return i;
+  }
+
+  private void grow() {
+    int capacity = kinds.length * 2;
+    kinds = Arrays.copyOf(kinds, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+    centered = Arrays.copyOf(centered, capacity);
+    widths = Arrays.copyOf(widths, capacity);
+    heights = Arrays.copyOf(heights, capacity);
+    fillColors = Arrays.copyOf(fillColors, capacity);
+    strokeColors = Arrays.copyOf(strokeColors, capacity);
+    strokeWeights = Arrays.copyOf(strokeWeights, capacity);
+    images = Arrays.copyOf(images, capacity);
+    rendered = Arrays.copyOf(rendered, capacity);
+    clipXs = Arrays.copyOf(clipXs, capacity);
+    clipYs = Arrays.copyOf(clipYs, capacity);
+    clipWidths = Arrays.copyOf(clipWidths, capacity);
+    clipHeights = Arrays.copyOf(clipHeights, capacity);
+  }
+
+  byte kind(int i) {
+    return kinds[i];
+  }
+
+  float left(int i) {
+    return centered[i] ? xs[i] - widths[i] / 2 : xs[i];
+  }
+
+  float top(int i) {
+    return centered[i] ? ys[i] - heights[i] / 2 : ys[i];
+  }
+
+  float width(int i) {
+    return widths[i];
+  }
+
+  float height(int i) {
+    return heights[i];
+  }
+
+  int fillColor(int i) {
+    return fillColors[i];
+  }
+
+  int strokeColor(int i) {
+    return strokeColors[i];
+  }
+
+  float strokeWeight(int i) {
+    return strokeWeights[i];
+  }
+
+  PImage image(int i) {
+    return images[i].image;
+  }
+
+  // The region of image(i) that the i-th element draws, which is all of it unless it is an atlas.
+  int imageX(int i) {
+    return images[i].atlasX();
+  }
+
+  int imageY(int i) {
+    return images[i].atlasY();
+  }
+
+  int imageWidth(int i) {
+    return images[i].pixelWidth();
+  }
+
+  int imageHeight(int i) {
+    return images[i].pixelHeight();
+  }
+
+  float clipLeft(int i) {
+    return clipXs[i];
+  }
+
+  float clipTop(int i) {
+    return clipYs[i];
+  }
+
+  float clipRight(int i) {
+    return clipXs[i] + clipWidths[i];
+  }
+
+  float clipBottom(int i) {
+    return clipYs[i] + clipHeights[i];
+  }
+
+  /**
+   * @return the bounds of the pixels that the i-th element may change, as
+   * {left, top, right, bottom} written to the array: its bounds including
+   * its stroke, within its clip rectangle, and widened to whole pixels plus
+   * one for anti-aliasing. Empty (right &lt;= left) if it changes no pixels.
+   */
+  void pixelBounds(int i, float[] bounds) {
+    float halfStroke = strokeWeights[i] / 2;
+    float left = Math.max(clipLeft(i), left(i) - halfStroke);
+    float top = Math.max(clipTop(i), top(i) - halfStroke);
+    float right = Math.min(clipRight(i), left(i) + widths[i] + halfStroke);
+    float bottom = Math.min(clipBottom(i), top(i) + heights[i] + halfStroke);
+    if (right <= left || bottom <= top) {
+      Arrays.fill(bounds, 0);
+      return;
+    }
+    bounds[0] = (float) Math.floor(left) - 1;
+    bounds[1] = (float) Math.floor(top) - 1;
+    bounds[2] = (float) Math.ceil(right) + 1;
+    bounds[3] = (float) Math.ceil(bottom) + 1;
+  }
+
+  /** @return whether the i-th element of this list and the j-th of the other are drawn the same. */
+  boolean sameAs(int i, FlatCommands other, int j) {
+    return kinds[i] == other.kinds[j]
+        && xs[i] == other.xs[j] && ys[i] == other.ys[j] && centered[i] == other.centered[j]
+        && widths[i] == other.widths[j] && heights[i] == other.heights[j]
+        && fillColors[i] == other.fillColors[j] && strokeColors[i] == other.strokeColors[j]
+        && strokeWeights[i] == other.strokeWeights[j]
+        && images[i] == other.images[j] && rendered[i] == other.rendered[j]
+        && clipXs[i] == other.clipXs[j] && clipYs[i] == other.clipYs[j]
+        && clipWidths[i] == other.clipWidths[j] && clipHeights[i] == other.clipHeights[j];
+  }
+
+  /**
+   * Draw the elements through Processing, each clipped to its clip rectangle.
+   * Leaves the graphics clipped.
+   */
+  void draw(RenderState state) {
+    for (int i = 0; i < size; i++) {
+      state.clip(clipXs[i], clipYs[i], clipWidths[i], clipHeights[i]);
+      drawElement(state, i);
+    }
+  }
+
+  /**
+   * Draw the elements that overlap the given region through Processing, each
+   * clipped to both its clip rectangle and the region. Leaves the graphics clipped.
+   */
+  void draw(RenderState state, float regionLeft, float regionTop, float regionRight, float regionBottom) {
+    float[] bounds = regionBounds;
+    for (int i = 0; i < size; i++) {
+      pixelBounds(i, bounds);
+      if (bounds[2] <= regionLeft || bounds[0] >= regionRight || bounds[3] <= regionTop || bounds[1] >= regionBottom
+          || bounds[2] <= bounds[0]) {
+        continue;
+      }
+      float clipLeft = Math.max(clipLeft(i), regionLeft), clipTop = Math.max(clipTop(i), regionTop);
+      float clipRight = Math.min(clipRight(i), regionRight), clipBottom = Math.min(clipBottom(i), regionBottom);
+      if (clipLeft == clipXs[i] && clipTop == clipYs[i] && clipRight == clipRight(i) && clipBottom == clipBottom(i)) {
+        state.clip(clipXs[i], clipYs[i], clipWidths[i], clipHeights[i]);
+      } else {
+        state.clip(clipLeft, clipTop, clipRight - clipLeft, clipBottom - clipTop);
+      }
+      drawElement(state, i);
+    }
+  }
+
+  // Draw the i-th element, within the clip rectangle that is already set.
+  private void drawElement(RenderState state, int i) {
+    PGraphics g = state.graphics();
+    int mode = centered[i] ? PApplet.CENTER : PApplet.CORNER;
+    switch (kinds[i]) {
+      case RECTANGLE:
+        state.shapeSettings(fillColors[i], strokeColors[i], strokeWeights[i]);
+        state.rectMode(mode);
+        g.rect(xs[i], ys[i], widths[i], heights[i]);
+        break;
+      case ELLIPSE:
+        state.shapeSettings(fillColors[i], strokeColors[i], strokeWeights[i]);
+        state.ellipseMode(mode);
+        g.ellipse(xs[i], ys[i], widths[i], heights[i]);
+        break;
+      case IMAGE: {
+        Image image = images[i];
+        int width = image.pixelWidth(), height = image.pixelHeight();
+        int u = image.atlasX(), v = image.atlasY();
+        if (widths[i] == width && heights[i] == height) {
+          // Draw it where Processing draws an image at its own size, which when centered
+          // is rounded to whole pixels.
+          float x = xs[i], y = ys[i];
+          if (centered[i]) {
+            x -= width / 2;
+            y -= height / 2;
+          }
+          state.imageMode(PApplet.CORNER);
+          g.image(image.image, x, y, width, height, u, v, u + width, v + height);
+          break;
+        }
+        // Processing scales the image to the pixels between the truncated corners of its
+        // bounds; prefer a copy that already has that size, drawn at the same place.
+        float left = centered[i] ? xs[i] - widths[i] / 2 : xs[i];
+        float top = centered[i] ? ys[i] - heights[i] / 2 : ys[i];
+        int x = (int) left, y = (int) top;
+        int scaledWidth = (int) (left + widths[i]) - x, scaledHeight = (int) (top + heights[i]) - y;
+        PImage scaled = scaledWidth > 0 && scaledHeight > 0
+            ? ScaledImageCache.instance().get(image, scaledWidth, scaledHeight, g)
+            : null;
+        if (scaled != null) {
+          state.imageMode(PApplet.CORNER);
+          g.image(scaled, x, y);
+        } else {
+          state.imageMode(mode);
+          g.image(image.image, xs[i], ys[i], widths[i], heights[i], u, v, u + width, v + height);
+        }
+        break;
+      }
+      case RENDERED:
+        state.imageMode(PApplet.CORNER);
+        g.image(rendered[i], xs[i], ys[i]);
+        break;
+    }
+  }
+}
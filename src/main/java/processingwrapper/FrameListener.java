@@ -0,0 +1,17 @@
+package processingwrapper;
+
+/**
+ * A {@link FrameListener} is told about every frame drawn by a running
+ * {@link ProcessingApp}, e.g. to log or chart how long frames take. Listeners
+ * are added with {@link AppSettings#withFrameListener}, and are called on the
+ * drawing thread after {@link ProcessingApp#frameRendered}.
+ */
+@FunctionalInterface
+public interface FrameListener {
+  /**
+   * Called after each frame has been drawn.
+   *
+   * @param stats Statistics about the frame that was just drawn.
+   */
+  void frameRendered(FrameStats stats);
+}
@@ -0,0 +1,272 @@
+package processingwrapper;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * What happens every frame of a running {@link ProcessingApp}, whether it
+ * draws to a window or offscreen: the app draws on the main canvas, the
+ * canvas is committed to the graphics, and the frame is measured, recorded
+ * and reported to the app and its {@link FrameListener}s.
+ *
+ * If the frames are pipelined (see {@link AppSettings#withPipelining}), the
+ * app draws on the main canvas on a separate thread, one frame ahead: while
+ * a frame is committed, the next one is drawn. At the start of each frame,
+ * the commands drawn for it are published (see {@link Canvas#publish}), so
+ * that committing never reads a buffer that is being drawn into.
+ *
+ * Not externally accessible! Used by {@link ProcessingApp#start} and
+ * {@link OffscreenRenderer}.
+ */
+final class FrameLoop {
+  // The number of recent frames that frame time percentiles are computed over.
+  private static final int PERCENTILE_WINDOW = 120;
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  // The fraction of the graphics that may change before all of it is redrawn.
+  private static final double FULL_REDRAW_FRACTION = 0.5;
+
+  private final ProcessingApp app;
+  private final Canvas mainCanvas;
+  private final PGraphics graphics;
+  private final AppSettings settings;
+  private final RenderCache cache;
+  private final RenderState state;
+  private final FrameTimeHistogram frameTimes = new FrameTimeHistogram(PERCENTILE_WINDOW);
+  // When the last frame started, or -1 before the first frame.
+  private long lastFrameStart = -1;
+  // Draws the frames if they are pipelined, or null if they are drawn by the caller.
+  private final ExecutorService drawer;
+  // The frame being drawn by the drawer, completing with its draw time and allocated
+  // bytes; null before the first frame.
+  private CompletableFuture<long[]> pending;
+  // Draw the frames if they are rendered in software, or null if they are committed.
+  private final FlatCommands flattened;
+  private final TileRasterizer rasterizer;
+  // The elements of the current and the previous frame if only changed regions are
+  // redrawn, or null if every frame is redrawn entirely.
+  private FlatCommands current, previous;
+  private boolean drawnBefore;
+  // The size of the stats overlay drawn over the last frame, which has to be redrawn.
+  private float overlayWidth, overlayHeight;
+  // The bounding box of the changes in a frame and of one element, as {left, top, right,
+  // bottom}; reused from frame to frame.
+  private final float[] dirty = new float[4], bounds = new float[4];
+
+  FrameLoop(ProcessingApp app, double width, double height, PGraphics graphics, AppSettings settings) {
+    this.app = app;
+    this.mainCanvas = Canvas.of(width, height);
+    this.graphics = graphics;
+    this.settings = settings;
+    this.cache = new RenderCache(graphics.parent, RenderCache.DEFAULT_BUDGET_BYTES, settings.usesAutoCaching());
+    this.state = new RenderState(graphics);
+    this.drawer = settings.isPipelined() ? Executors.newSingleThreadExecutor(task -> {
+      Thread thread = new Thread(task, "frame-drawer");
+      thread.setDaemon(true);
+      return thread;
+    }) : null;
+    if (settings.usesSoftwareRendering()) {
+      this.flattened = new FlatCommands();
+      this.rasterizer = new TileRasterizer(graphics.width, graphics.height);
+    } else {
+      this.flattened = null;
+      this.rasterizer = null;
+      if (settings.usesIncrementalRedraw()) {
+        current = new FlatCommands();
+        previous = new FlatCommands();
+      }
+    }
+  }
+
+  /**
+   * Draw a frame of the app. The graphics must be between beginDraw and endDraw,
+   * and still hold the previous frame (if any).
+   */
+  void drawFrame() {
+    long start = System.nanoTime();
+    long allocatedBefore = allocatedBytes();
+    long drawTime, drawAllocated;
+    if (drawer == null) {
+      app.drawFrame(mainCanvas);
+      drawTime = System.nanoTime() - start;
+      drawAllocated = 0;
+    } else {
+      if (pending == null) pending = drawNext();
+      long[] drawn = await(pending);
+      drawTime = drawn[0];
+      drawAllocated = drawn[1];
+      mainCanvas.publish();
+      pending = drawNext();
+    }
+    long drawn = System.nanoTime();
+    if (rasterizer != null) {
+      rasterize();
+    } else if (current != null) {
+      redrawChanged();
+    } else {
+      graphics.background(255);
+      mainCanvas.commit(state, cache);
+    }
+    long committed = System.nanoTime();
+    long allocated = allocatedBefore < 0 || drawAllocated < 0 ? -1
+        : allocatedBytes() - allocatedBefore + drawAllocated;
+
+    long frameTime = lastFrameStart < 0 ? committed - start : start - lastFrameStart;
+    lastFrameStart = start;
+    frameTimes.add(frameTime);
+    FrameStats stats = new FrameStats(cache.frame(), frameTime, drawTime, committed - drawn, frameTimes, state,
+        allocated);
+
+    if (settings.recorder().isPresent()) {
+      graphics.loadPixels();
+      settings.recorder().get().record(graphics.pixels, graphics.pixelWidth, graphics.pixelHeight);
+    }
+    if (settings.showsStatsOverlay()) {
+      float[] box = StatsOverlay.draw(graphics, stats);
+      overlayWidth = box[0];
+      overlayHeight = box[1];
+    }
+    app.frameRendered(stats);
+    for (FrameListener listener : settings.frameListeners()) {
+      listener.frameRendered(stats);
+    }
+  }
+
+  // Redraw the part of the graphics that changed since the last frame.
+  private void redrawChanged() {
+    cache.beginFrame();
+    state.reset();
+    int width = graphics.width, height = graphics.height;
+    mainCanvas.flatten(current, state, width, height);
+
+    if (!drawnBefore) {
+      set(dirty, 0, 0, width, height);
+      drawnBefore = true;
+    } else {
+      set(dirty, width, height, 0, 0);
+      for (int i = 0; i < Math.max(current.size(), previous.size()); i++) {
+        if (i < current.size() && i < previous.size() && current.sameAs(i, previous, i)) continue;
+        if (i < current.size()) {
+          current.pixelBounds(i, bounds);
+          addTo(dirty, bounds);
+        }
+        if (i < previous.size()) {
+          previous.pixelBounds(i, bounds);
+          addTo(dirty, bounds);
+        }
+      }
+      if (overlayWidth > 0) {
+        set(bounds, 0, 0, overlayWidth, overlayHeight);
+        addTo(dirty, bounds);
+      }
+    }
+    float left = Math.max(0, dirty[0]), top = Math.max(0, dirty[1]);
+    float right = Math.min(width, dirty[2]), bottom = Math.min(height, dirty[3]);
+
+    if (right > left && bottom > top) {
+      if ((double) (right - left) * (bottom - top) > FULL_REDRAW_FRACTION * width * height) {
+        left = 0;
+        top = 0;
+        right = width;
+        bottom = height;
+      }
+      state.clip(left, top, right - left, bottom - top);
+      state.rectMode(PApplet.CORNER);
+      state.fill(0xffffffff);
+      state.noStroke();
+      graphics.rect(left, top, right - left, bottom - top);
+      current.draw(state, left, top, right, bottom);
+    }
+
+    FlatCommands drawn = previous;
+    previous = current;
+    current = drawn;
+  }
+
+  // Set the box to {left, top, right, bottom}.
+  private static void set(float[] box, float left, float top, float right, float bottom) {
+    box[0] = left;
+    box[1] = top;
+    box[2] = right;
+    box[3] = bottom;
+  }
+
+  // Grow the bounding box to contain the bounds, unless they are empty.
+  private static void addTo(float[] box, float[] bounds) {
+    if (bounds[2] <= bounds[0] || bounds[3] <= bounds[1]) return;
+    box[0] = Math.min(box[0], bounds[0]);
+    box[1] = Math.min(box[1], bounds[1]);
+    box[2] = Math.max(box[2], bounds[2]);
+    box[3] = Math.max(box[3], bounds[3]);
+  }
+
+  // Draw the main canvas into the graphics in software.
+  private void rasterize() {
+    cache.beginFrame();
+    mainCanvas.flatten(flattened, state, rasterizer.width(), rasterizer.height());
+    int[] pixels = rasterizer.draw(flattened);
+    graphics.loadPixels();
+    if (graphics.pixelWidth == rasterizer.width() && graphics.pixelHeight == rasterizer.height()) {
+      System.arraycopy(pixels, 0, graphics.pixels, 0, pixels.length);
+    } else {
+      // The graphics has more pixels than points; repeat each pixel.
+      for (int y = 0; y < graphics.pixelHeight; y++) {
+        int sourceRow = Math.min(rasterizer.height() - 1, y / graphics.pixelDensity) * rasterizer.width();
+        for (int x = 0; x < graphics.pixelWidth; x++) {
+          int sourceX = Math.min(rasterizer.width() - 1, x / graphics.pixelDensity);
+          graphics.pixels[y * graphics.pixelWidth + x] = pixels[sourceRow + sourceX];
+        }
+      }
+    }
+    graphics.updatePixels();
+  }
+
+  // Start drawing the next frame on the drawer thread.
+  private CompletableFuture<long[]> drawNext() {
+    return CompletableFuture.supplyAsync(() -> {
+      long start = System.nanoTime();
+      long allocatedBefore = allocatedBytes();
+      app.drawFrame(mainCanvas);
+      long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+      return new long[] {System.nanoTime() - start, allocated};
+    }, drawer);
+  }
+
+  // Wait for a frame to be drawn, rethrowing what the app threw while drawing it.
+  private static long[] await(CompletableFuture<long[]> frame) {
+    try {
+      return frame.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * Finish once the app has exited, stopping its update thread if it has one,
+   * and the thread that draws its frames if they are pipelined.
+   */
+  void dispose() {
+    if (drawer != null) drawer.shutdownNow();
+    if (app instanceof SimulatedApp) ((SimulatedApp<?>) app).stop();
+  }
+
+  // The number of bytes the current thread allocated so far, or -1 if not supported.
+  private static long allocatedBytes() {
+    if (THREADS instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+      if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+}
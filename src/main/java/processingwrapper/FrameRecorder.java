@@ -0,0 +1,305 @@
+package processingwrapper;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Records frames to files: either a sequence of PNG images, or a Motion JPEG
+ * AVI video. A recorder is passed to {@link ProcessingApp#start} or
+ * {@link ProcessingApp#recordOffscreen}, which record every committed frame.
+ *
+ * Recording a frame only copies its pixels into a queue; background threads
+ * encode and write the frames, so that drawing does not wait for the disk.
+ * What happens when the queue is full is set by the
+ * {@link RecorderSettings.Backpressure} policy of the {@link RecorderSettings}
+ * the recorder was created with.
+ *
+ * A recorder must be closed to finish writing its frames (a recorder passed to
+ * {@link ProcessingApp#start} is closed when the sketch exits); a recorder that
+ * is never closed does not keep the program from exiting, but the frames still
+ * queued when it exits are lost. If a frame could not be written, recording and
+ * closing throw an {@link UncheckedIOException}.
+ */
+public final class FrameRecorder implements AutoCloseable {
+  // Where the encoder threads write frames to. Called from several threads at once.
+  private interface Sink {
+    void write(long number, BufferedImage frame) throws IOException;
+
+    void close() throws IOException;
+  }
+
+  private static final class Frame {
+    final long number;
+    final int[] pixels;
+    final int width, height;
+
+    Frame(long number, int[] pixels, int width, int height) {
+      this.number = number;
+      this.pixels = pixels;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  // Tells an encoder thread to stop.
+  private static final Frame END = new Frame(0, null, 0, 0);
+
+  private final Sink sink;
+  private final RecorderSettings settings;
+  private final BlockingQueue<Frame> queue;
+  // Pixel arrays of frames that have been written, to be reused for new frames.
+  private final Queue<int[]> spareBuffers = new ConcurrentLinkedQueue<>();
+  private final Thread[] encoders;
+  private final AtomicReference<IOException> failure = new AtomicReference<>();
+  private final AtomicLong written = new AtomicLong();
+  private long recorded, dropped;
+  private int width = -1, height = -1;
+  private boolean closed;
+
+  private FrameRecorder(Sink sink, RecorderSettings settings, String name) {
+    this.sink = sink;
+    this.settings = settings;
+    this.queue = new ArrayBlockingQueue<>(settings.queueCapacity());
+    this.encoders = new Thread[settings.encoderThreads()];
+    // The encoders are daemons so that a recorder that is never closed does not keep the
+    // program running; close() waits for them to write every queued frame.
+    for (int i = 0; i < encoders.length; i++) {
+      encoders[i] = new Thread(this::encode, "frame-encoder-" + name + "-" + (i + 1));
+      encoders[i].setDaemon(true);
+      encoders[i].start();
+    }
+  }
+
+  /**
+   * Create a recorder that writes each frame to the directory as a PNG image named
+   * {@code frame-000001.png}, {@code frame-000002.png}, and so on. The directory is
+   * created if it does not exist.
+   * @throws IllegalArgumentException if the directory cannot be created.
+   */
+  public static FrameRecorder toPngSequence(String directory, RecorderSettings settings) {
+    File dir = new File(Objects.requireNonNull(directory));
+    Objects.requireNonNull(settings);
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IllegalArgumentException("directory: " + directory);
+    Sink sink = new Sink() {
+      @Override
+      public void write(long number, BufferedImage frame) throws IOException {
+        File file = new File(dir, String.format("frame-%06d.png", number));
+        if (!ImageIO.write(frame, "png", file)) throw new IOException("no PNG encoder");
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    return new FrameRecorder(sink, settings, dir.getName());
+  }
+
+  /** Create a recorder that writes PNG images with the default settings; see above. */
+  public static FrameRecorder toPngSequence(String directory) {
+    return toPngSequence(directory, RecorderSettings.createDefault());
+  }
+
+  /**
+   * Create a recorder that writes the frames to a Motion JPEG AVI file, played back at
+   * the given number of frames per second. All frames must have the same size.
+   * @throws IllegalArgumentException if framesPerSecond is not positive, or if there
+   * is an IOException when creating the file.
+   */
+  public static FrameRecorder toAvi(String file, double framesPerSecond, RecorderSettings settings) {
+    Objects.requireNonNull(file);
+    Objects.requireNonNull(settings);
+    if (!(framesPerSecond > 0)) throw new IllegalArgumentException("framesPerSecond not positive");
+    AviWriter writer;
+    try {
+      writer = new AviWriter(new File(file), framesPerSecond);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("file: " + file, e);
+    }
+    Sink sink = new Sink() {
+      // Frames are encoded in any order, but must be written in order.
+      private final Map<Long, byte[]> encoded = new HashMap<>();
+      private long next = 1;
+
+      @Override
+      public void write(long number, BufferedImage frame) throws IOException {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        if (!ImageIO.write(frame, "jpg", jpeg)) throw new IOException("no JPEG encoder");
+        synchronized (this) {
+          encoded.put(number, jpeg.toByteArray());
+          for (byte[] data; (data = encoded.remove(next)) != null; next++) {
+            writer.writeFrame(data, frame.getWidth(), frame.getHeight());
+          }
+        }
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+        writer.close();
+      }
+    };
+    return new FrameRecorder(sink, settings, new File(file).getName());
+  }
+
+  /** Create a recorder that writes an AVI file with the default settings; see above. */
+  public static FrameRecorder toAvi(String file, double framesPerSecond) {
+    return toAvi(file, framesPerSecond, RecorderSettings.createDefault());
+  }
+
+  /**
+   * Record a frame. The pixels are copied, so the array can be reused once this returns.
+   *
+   * @param pixels The pixels of the frame, row by row, as ARGB colors (alpha is ignored).
+   * @param width  The width of the frame.
+   * @param height The height of the frame.
+   * @throws IllegalArgumentException if the size differs from the first recorded frame,
+   * or there are fewer pixels than it specifies.
+   * @throws IllegalStateException if the recorder is closed.
+   * @throws UncheckedIOException if an earlier frame could not be written.
+   */
+  public synchronized void record(int[] pixels, int width, int height) {
+    Objects.requireNonNull(pixels);
+    if (closed) throw new IllegalStateException("recorder closed");
+    checkFailure();
+    if (width <= 0 || height <= 0 || pixels.length < width * height) {
+      throw new IllegalArgumentException("pixels do not match size");
+    }
+    if (this.width < 0) {
+      this.width = width;
+      this.height = height;
+    } else if (width != this.width || height != this.height) {
+      throw new IllegalArgumentException("frame size changed");
+    }
+
+    boolean block = settings.backpressure() == RecorderSettings.Backpressure.BLOCK;
+    if (!block && queue.remainingCapacity() == 0) {
+      // Don't bother copying a frame that would be dropped.
+      dropped++;
+      return;
+    }
+    int[] buffer = spareBuffers.poll();
+    if (buffer == null) buffer = new int[width * height];
+    System.arraycopy(pixels, 0, buffer, 0, width * height);
+    Frame frame = new Frame(recorded + 1, buffer, width, height);
+    if (block) {
+      try {
+        queue.put(frame);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped++;
+        return;
+      }
+    } else if (!queue.offer(frame)) {
+      dropped++;
+      spareBuffers.add(buffer);
+      return;
+    }
+    recorded++;
+  }
+
+  // Run by each encoder thread until it is told to stop.
+  private void encode() {
+    while (true) {
+      Frame frame;
+      try {
+        frame = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (frame == END) return;
+      // After a failure, keep taking frames so that recording does not block forever.
+      if (failure.get() == null) {
+        try {
+          sink.write(frame.number, toImage(frame));
+          written.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+          failure.compareAndSet(null, e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+      }
+      spareBuffers.add(frame.pixels);
+    }
+  }
+
+  // Wrap the pixels of the frame in an image, without copying them.
+  private static BufferedImage toImage(Frame frame) {
+    DataBufferInt buffer = new DataBufferInt(frame.pixels, frame.width * frame.height);
+    int[] masks = {0xff0000, 0xff00, 0xff};
+    WritableRaster raster = Raster.createPackedRaster(buffer, frame.width, frame.height, frame.width, masks, null);
+    return new BufferedImage(new DirectColorModel(24, masks[0], masks[1], masks[2]), raster, false, null);
+  }
+
+  private void checkFailure() {
+    IOException e = failure.get();
+    if (e != null) throw new UncheckedIOException("could not write frame", e);
+  }
+
+  /** @return the number of frames accepted for writing so far. */
+  public synchronized long framesRecorded() {
+    return recorded;
+  }
+
+  /** @return the number of frames dropped because the queue was full; see {@link RecorderSettings.Backpressure}. */
+  public synchronized long framesDropped() {
+    return dropped;
+  }
+
+  /** @return the number of frames written so far. */
+  public long framesWritten() {
+    return written.get();
+  }
+
+  /**
+   * Wait until all recorded frames have been written, then finish writing the files.
+   * Does nothing if the recorder is already closed.
+   * @throws UncheckedIOException if a frame or the file could not be written.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) return;
+    closed = true;
+    boolean interrupted = false;
+    for (int i = 0; i < encoders.length; i++) {
+      while (true) {
+        try {
+          queue.put(END);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    for (Thread encoder : encoders) {
+      while (encoder.isAlive()) {
+        try {
+          encoder.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    try {
+      sink.close();
+    } catch (IOException e) {
+      failure.compareAndSet(null, e);
+    }
+    checkFailure();
+  }
+}
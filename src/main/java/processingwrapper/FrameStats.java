@@ -0,0 +1,187 @@
+package processingwrapper;
+
+/**
+ * Statistics about how a single frame was drawn to the screen: how long each
+ * part of the frame took, what was drawn, and how much memory was allocated.
+ * An instance is passed to {@link ProcessingApp#frameRendered} and to every
+ * {@link FrameListener} after every frame. A {@link FrameStats} instance is
+ * immutable.
+ *
+ * All times are in nanoseconds.
+ */
+public class FrameStats {
+  private final long frame;
+  private final long frameTime;
+  private final long drawFrameTime;
+  private final long commitTime;
+  private final long frameTimeP50;
+  private final long frameTimeP99;
+  private final long stateChanges;
+  private final long elidedStateChanges;
+  private final long clipCalls;
+  private final long culledElements;
+  private final long rectangles;
+  private final long ellipses;
+  private final long images;
+  private final long canvases;
+  private final int maxDepth;
+  private final long allocatedBytes;
+
+  // The counters are read from the state the frame was committed with.
+  FrameStats(long frame, long frameTime, long drawFrameTime, long commitTime, FrameTimeHistogram frameTimes,
+             RenderState state, long allocatedBytes) {
+    this.frame = frame;
+    this.frameTime = frameTime;
+    this.drawFrameTime = drawFrameTime;
+    this.commitTime = commitTime;
+    this.frameTimeP50 = frameTimes.percentile(0.5);
+    this.frameTimeP99 = frameTimes.percentile(0.99);
+    this.stateChanges = state.issuedCalls();
+    this.elidedStateChanges = state.elidedCalls();
+    this.clipCalls = state.clipCalls();
+    this.culledElements = state.culledElements();
+    this.rectangles = state.drawnElements(Drawable.DrawableType.RECTANGLE);
+    this.ellipses = state.drawnElements(Drawable.DrawableType.ELLIPSE);
+    this.images = state.drawnElements(Drawable.DrawableType.IMAGE);
+    this.canvases = state.drawnElements(Drawable.DrawableType.CANVAS);
+    this.maxDepth = state.maxDepth();
+    this.allocatedBytes = allocatedBytes;
+  }
+
+  /**
+   * @return the number of the frame, starting at 1 for the first frame.
+   */
+  public long frame() {
+    return frame;
+  }
+
+  /**
+   * @return the time from the start of the previous frame to the start of this
+   * one (for the first frame, the time this frame took). Besides drawing the
+   * canvas, this includes the time Processing took to show the previous frame,
+   * and any time spent waiting for the next frame to be due.
+   */
+  public long frameTime() {
+    return frameTime;
+  }
+
+  /**
+   * @return the time {@link ProcessingApp#drawFrame} took.
+   */
+  public long drawFrameTime() {
+    return drawFrameTime;
+  }
+
+  /**
+   * @return the time drawing the main canvas to the screen took.
+   */
+  public long commitTime() {
+    return commitTime;
+  }
+
+  /**
+   * @return the median {@link #frameTime} over the last 120 frames (including this one).
+   */
+  public long frameTimeP50() {
+    return frameTimeP50;
+  }
+
+  /**
+   * @return the 99th percentile of the {@link #frameTime} over the last 120 frames
+   * (including this one).
+   */
+  public long frameTimeP99() {
+    return frameTimeP99;
+  }
+
+  /**
+   * @return the number of drawing state changes (fill, stroke, modes, clip)
+   * that were sent to Processing during the frame.
+   */
+  public long stateChanges() {
+    return stateChanges;
+  }
+
+  /**
+   * @return the number of drawing state changes that were skipped during the
+   * frame because Processing was already in the requested state.
+   */
+  public long elidedStateChanges() {
+    return elidedStateChanges;
+  }
+
+  /**
+   * @return the number of clip rectangles that were sent to Processing during
+   * the frame (these are also counted as state changes).
+   */
+  public long clipCalls() {
+    return clipCalls;
+  }
+
+  /**
+   * @return the number of elements (shapes, images and canvases) that were
+   * skipped during the frame because they lay entirely outside of the canvas
+   * they were drawn on.
+   */
+  public long culledElements() {
+    return culledElements;
+  }
+
+  /**
+   * @return the number of rectangles drawn during the frame. Elements of canvases
+   * drawn from a cached image are not counted.
+   */
+  public long rectangles() {
+    return rectangles;
+  }
+
+  /**
+   * @return the number of ellipses and circles drawn during the frame. Elements of
+   * canvases drawn from a cached image are not counted.
+   */
+  public long ellipses() {
+    return ellipses;
+  }
+
+  /**
+   * @return the number of images drawn during the frame. Elements of canvases
+   * drawn from a cached image are not counted.
+   */
+  public long images() {
+    return images;
+  }
+
+  /**
+   * @return the number of canvases drawn on other canvases during the frame.
+   */
+  public long canvases() {
+    return canvases;
+  }
+
+  /**
+   * @return how deeply the canvases drawn during the frame were nested: 0 if
+   * only the main canvas was drawn, 1 if canvases were drawn on it, and so on.
+   */
+  public int maxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return the number of bytes allocated by the drawing thread during
+   * {@link ProcessingApp#drawFrame} and drawing the main canvas, or -1 if the
+   * Java runtime cannot measure it.
+   */
+  public long allocatedBytes() {
+    return allocatedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("FrameStats(frame=%d, frameTime=%d, drawFrameTime=%d, commitTime=%d, p50=%d, p99=%d, "
+            + "stateChanges=%d, elided=%d, clips=%d, culled=%d, rectangles=%d, ellipses=%d, images=%d, "
+            + "canvases=%d, maxDepth=%d, allocatedBytes=%d)",
+        frame, frameTime, drawFrameTime, commitTime, frameTimeP50, frameTimeP99, stateChanges,
+        elidedStateChanges, clipCalls, culledElements, rectangles, ellipses, images, canvases, maxDepth,
+        allocatedBytes);
+  }
+}
@@ -0,0 +1,73 @@
+package processingwrapper;
+
+/**
+ * A histogram of the times of the most recent frames, from which percentiles
+ * of the frame time are read. Times are counted in buckets whose width grows
+ * with the time (8 buckets per power of two microseconds), so a percentile is
+ * accurate to within 12.5%, and adding a time or reading a percentile does not
+ * depend on the number of frames in the window.
+ *
+ * Not externally accessible! Used to fill in {@link FrameStats}.
+ */
+final class FrameTimeHistogram {
+  // Times below 2^(SUB_BITS + 1) microseconds get a bucket per microsecond.
+  private static final int SUB_BITS = 3;
+  private static final int LINEAR_BUCKETS = 2 << SUB_BITS;
+  private static final int BUCKETS = LINEAR_BUCKETS + (64 - SUB_BITS - 1) * (1 << SUB_BITS);
+
+  private final long[] window;
+  private final int[] counts = new int[BUCKETS];
+  // The next slot of the window to write to, and the number of times in it.
+  private int next, size;
+
+  /** Create a histogram of the last {@code window} frame times. */
+  FrameTimeHistogram(int window) {
+    assert(window > 0);
+    this.window = new long[window];
+  }
+
+  /** Add the time of a frame, dropping the oldest time if the window is full. */
+  void add(long nanos) {
+    if (size == window.length) {
+      counts[bucket(window[next])]--;
+    } else {
+      size++;
+    }
+    window[next] = nanos;
+    counts[bucket(nanos)]++;
+    next = (next + 1) % window.length;
+  }
+
+  /**
+   * @return the time, in nanoseconds, that the given fraction (in [0, 1]) of the
+   * frames in the window took at most; rounded up to the end of its bucket.
+   * Zero if no frames were added yet.
+   */
+  long percentile(double fraction) {
+    if (size == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(fraction * size));
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += counts[b];
+      if (seen >= rank) return upperBound(b) * 1000;
+    }
+    throw new AssertionError();
+  }
+
+  private static int bucket(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    if (micros < LINEAR_BUCKETS) return (int) micros;
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+    return LINEAR_BUCKETS + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+  }
+
+  // The largest time in microseconds that falls into the bucket.
+  private static long upperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) return bucket;
+    int exponent = (bucket - LINEAR_BUCKETS) / (1 << SUB_BITS) + SUB_BITS + 1;
+    int sub = (bucket - LINEAR_BUCKETS) % (1 << SUB_BITS);
+    long lower = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+    return lower + (1L << (exponent - SUB_BITS)) - 1;
+  }
+}
@@ -4,6 +4,14 @@ import processing.core.PImage;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 
@@ -11,25 +19,84 @@ import javax.imageio.ImageIO;
  * An image loaded from a file. An instance of this class can be passed
  * to {@link Canvas#draw} to be drawn on the canvas. Alternatively, the
  * image can be packaged together with its {@link ImageSettings}
+ *
+ * Images can also be loaded in the background with {@link #ofFileAsync}
+ * or {@link #loadAll}. Such an image can be drawn before it has finished
+ * loading: until then, it is drawn as a grey placeholder if its size is
+ * given by {@link ImageSettings}, and not drawn at all otherwise.
+ *
+ * All of these methods share one process-wide cache: loading a file that
+ * was loaded before (and has not changed on disk since) returns the same
+ * image instead of decoding it again. See {@link #cacheStats}.
+ *
+ * Many small images can be packed into one with {@link ImageAtlas}; the
+ * images it returns are regions of the shared atlas, but are drawn and
+ * measured like any other image.
  */
 public class Image {
-  
-  // Package-private so it can be drawn from another class.
-  final PImage image;
-  private final double width;
-  private final double height;    
+  // Color of the placeholder drawn in place of an image that has not loaded yet.
+  static final int PLACEHOLDER_COLOR = 0xffdddddd;
 
-  private Image(String file) {
+  // Decodes images in the background. Created on first use; the threads
+  // are daemons so that they do not keep the program running.
+  private static final class Loader {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    static final ExecutorService POOL = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+        task -> {
+          Thread thread = new Thread(task, "image-loader-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  // Package-private so it can be drawn from another class. Null until the image has loaded.
+  // For an image of an atlas, this is the whole atlas, of which the image is a region.
+  volatile PImage image;
+  private volatile double width;
+  private volatile double height;
+  // Whether this image is a region of an atlas, and the top left corner of that region.
+  private final boolean inAtlas;
+  private final int atlasX, atlasY;
+  // Completed with this image once it has loaded.
+  private final CompletableFuture<Image> loaded = new CompletableFuture<>();
+  // The copies of this image resampled to the sizes it is drawn at, or null if it was
+  // never drawn scaled. Guarded by the ScaledImageCache that made them.
+  ScaledImageCache.Sizes scaledCopies;
+
+  // Package-private so that ImageCache can create images, which it then loads.
+  Image() {
+    this.inAtlas = false;
+    this.atlasX = 0;
+    this.atlasY = 0;
+  }
+
+  // Package-private so that ImageAtlas can create the images it packs: the region of
+  // the atlas with the given top left corner and size, which is loaded right away.
+  Image(PImage atlas, int x, int y, int width, int height) {
+    this.inAtlas = true;
+    this.atlasX = x;
+    this.atlasY = y;
+    this.width = width;
+    this.height = height;
+    this.image = atlas;
+    loaded.complete(this);
+  }
+
+  // Read the file into this image, completing `loaded` either way.
+  void load(String file) {
     try {
       BufferedImage image = ImageIO.read(new File(file));
-      this.image = new PImage(image);
+      if (image == null) throw new IOException("unsupported image format");
       this.width = image.getWidth();
       this.height = image.getHeight();
-    } catch (IOException e) {
-      throw new IllegalArgumentException("file: " + file, e);
+      this.image = new PImage(image);
+      loaded.complete(this);
+    } catch (IOException | RuntimeException e) {
+      loaded.completeExceptionally(new IllegalArgumentException("file: " + file, e));
     }
   }
-  
+
   /**
    * Create a new image from the file with default settings (no tint;
    * dimensions of image as defined in file).
@@ -37,17 +104,122 @@ public class Image {
    * the file.
    */
   public static Image ofFile(String file) {
-    return new Image(file);
+    Objects.requireNonNull(file);
+    return ImageCache.instance().get(file, Runnable::run).join();
+  }
+
+  /**
+   * Start loading an image from the file in the background.
+   * @return a future that completes with the image once it has loaded, or
+   * exceptionally with an {@link IllegalArgumentException} if there is an
+   * IOException when reading the file.
+   */
+  public static CompletableFuture<Image> ofFileAsync(String file) {
+    return loadInBackground(Objects.requireNonNull(file)).whenReady();
+  }
+
+  /**
+   * Start loading images from all of the files in parallel in the background.
+   * The returned images can be drawn right away; see {@link Image} for how
+   * they are drawn before they have loaded.
+   * @return the images, in the same order as the files.
+   */
+  public static List<Image> loadAll(String... files) {
+    List<Image> images = new ArrayList<>(files.length);
+    for (String file : files) {
+      images.add(loadInBackground(Objects.requireNonNull(file)));
+    }
+    return images;
+  }
+
+  private static Image loadInBackground(String file) {
+    return ImageCache.instance().get(file, Loader.POOL);
+  }
+
+  /** @return a snapshot of the statistics of the cache that images are loaded through. */
+  public static ImageCacheStats cacheStats() {
+    return ImageCache.instance().stats();
+  }
+
+  /**
+   * Set the maximum pixel memory, in bytes, that the image cache keeps (256 MiB
+   * by default). Images dropped from the cache stay usable; only loading their
+   * file again decodes it anew.
+   * @throws IllegalArgumentException if the budget is negative.
+   */
+  public static void setCacheBudget(long bytes) {
+    if (bytes < 0) throw new IllegalArgumentException("bytes negative");
+    ImageCache.instance().setBudget(bytes);
   }
-  
-  /** @return the width (x-dimension) of the image before scaling. */
+
+  /** @return whether the image has finished loading. */
+  public boolean isReady() {
+    return loaded.isDone() && !loaded.isCompletedExceptionally();
+  }
+
+  /**
+   * @return a future that completes with this image once it has loaded, or
+   * exceptionally with an {@link IllegalArgumentException} if it could not be read.
+   */
+  public CompletableFuture<Image> whenReady() {
+    return loaded.thenApply(image -> image);
+  }
+
+  // Completed with this image once it has loaded.
+  CompletableFuture<Image> loaded() {
+    return loaded;
+  }
+
+  // Whether the (loaded) image is a region of an atlas rather than all of `image`.
+  boolean inAtlas() {
+    return inAtlas;
+  }
+
+  // The left edge of the (loaded) image within `image`.
+  int atlasX() {
+    return atlasX;
+  }
+
+  // The top edge of the (loaded) image within `image`.
+  int atlasY() {
+    return atlasY;
+  }
+
+  // The width of the (loaded) image in pixels.
+  int pixelWidth() {
+    return (int) width;
+  }
+
+  // The height of the (loaded) image in pixels.
+  int pixelHeight() {
+    return (int) height;
+  }
+
+  // Wait until the image has loaded, rethrowing the exception if it could not be read.
+  private Image join() {
+    try {
+      return loaded.join();
+    } catch (CompletionException e) {
+      throw (IllegalArgumentException) e.getCause();
+    }
+  }
+
+  /**
+   * @return the width (x-dimension) of the image before scaling. Waits for
+   * the image to finish loading.
+   * @throws IllegalArgumentException if the image could not be read.
+   */
   public double width() {
-    return width;
+    return join().width;
   }
 
-  /** @return the height (y-dimension) of the image before scaling. */
+  /**
+   * @return the height (y-dimension) of the image before scaling. Waits for
+   * the image to finish loading.
+   * @throws IllegalArgumentException if the image could not be read.
+   */
   public double height() {
-    return height;
+    return join().height;
   }
 
   // Don't override equals/hashcode; instance equality is good enough here.
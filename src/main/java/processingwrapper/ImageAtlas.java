@@ -0,0 +1,192 @@
+package processingwrapper;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Many small images packed into one large image, the atlas. The images of an
+ * atlas (see {@link #get}) are drawn like any other {@link Image}, but all of
+ * them share the pixels of the atlas: drawing many of them draws regions of a
+ * single image, which renderers can keep as one texture instead of one per
+ * image, and which needs no per-image copy of the pixels. Once packed, the
+ * original images are no longer needed and can be dropped.
+ *
+ * The images are packed from the tallest to the shortest, each at the lowest
+ * free position along the top edge of those packed so far (the "skyline"),
+ * into an atlas whose width is a power of two. Each image is surrounded by a
+ * one-pixel border that repeats its edge pixels, so that drawing it scaled
+ * does not pick up pixels of its neighbors.
+ *
+ * Images of an atlas are drawn fastest at their own size; at any other size,
+ * they are drawn like any other image (see {@link ImageSettings}).
+ */
+public final class ImageAtlas {
+  // The border around each image, in pixels.
+  private static final int PADDING = 1;
+
+  private final PImage atlas;
+  private final List<Image> images;
+
+  private ImageAtlas(PImage atlas, List<Image> images) {
+    this.atlas = atlas;
+    this.images = Collections.unmodifiableList(images);
+  }
+
+  /**
+   * Pack the images into a new atlas, waiting for any that are still loading.
+   * @throws IllegalArgumentException if there are no images, or one of them
+   * could not be read.
+   */
+  public static ImageAtlas of(Image... images) {
+    return of(Arrays.asList(images));
+  }
+
+  /**
+   * Pack the images into a new atlas, waiting for any that are still loading.
+   * @throws IllegalArgumentException if there are no images, or one of them
+   * could not be read.
+   */
+  public static ImageAtlas of(List<Image> images) {
+    if (images.isEmpty()) throw new IllegalArgumentException("no images");
+    int n = images.size();
+    int[] widths = new int[n], heights = new int[n];
+    long area = 0;
+    int widest = 0;
+    boolean opaque = true;
+    for (int k = 0; k < n; k++) {
+      Image image = Objects.requireNonNull(images.get(k));
+      // Waits for the image to load, and throws if it could not be read.
+      widths[k] = (int) image.width() + 2 * PADDING;
+      heights[k] = (int) image.height() + 2 * PADDING;
+      area += (long) widths[k] * heights[k];
+      widest = Math.max(widest, widths[k]);
+      opaque &= image.image.format == PConstants.RGB;
+    }
+
+    // Wide enough that the atlas comes out about square, if the images pack well.
+    int width = Math.max(widest, Integer.highestOneBit((int) Math.ceil(Math.sqrt(area)) - 1) << 1);
+    int[] xs = new int[n], ys = new int[n];
+    int height = pack(widths, heights, width, xs, ys);
+
+    // Renderers draw opaque images faster, so keep the atlas opaque if all of the images are.
+    PImage atlas = new PImage(width, height, opaque ? PConstants.RGB : PConstants.ARGB);
+    atlas.loadPixels();
+    List<Image> packed = new ArrayList<>(n);
+    for (int k = 0; k < n; k++) {
+      Image image = images.get(k);
+      copy(image, atlas, xs[k], ys[k]);
+      packed.add(new Image(atlas, xs[k] + PADDING, ys[k] + PADDING, image.pixelWidth(), image.pixelHeight()));
+    }
+    atlas.updatePixels();
+    return new ImageAtlas(atlas, packed);
+  }
+
+  /**
+   * Pack the images of the files into a new atlas, loading them in parallel.
+   * @throws IllegalArgumentException if there are no files, or there is an
+   * IOException when reading one of them.
+   */
+  public static ImageAtlas ofFiles(String... files) {
+    return of(Image.loadAll(files));
+  }
+
+  // Place the rectangles with the given sizes within the width, writing their top left
+  // corners to xs and ys. Returns the height of the rectangles once placed.
+  private static int pack(int[] widths, int[] heights, int width, int[] xs, int[] ys) {
+    Integer[] order = new Integer[widths.length];
+    for (int k = 0; k < order.length; k++) order[k] = k;
+    Arrays.sort(order, (a, b) -> heights[a] != heights[b]
+        ? Integer.compare(heights[b], heights[a]) : Integer.compare(widths[b], widths[a]));
+
+    // The skyline, as segments from left to right: segment s starts at skyX[s], and
+    // the rectangles placed so far reach down to skyY[s] over its whole width.
+    int[] skyX = new int[widths.length + 2], skyY = new int[widths.length + 2];
+    int segments = 1;
+    int height = 0;
+    for (int k : order) {
+      int w = widths[k], h = heights[k];
+      // The segment to start at with the lowest resulting bottom edge, ties going left.
+      int best = -1, bestY = Integer.MAX_VALUE;
+      for (int s = 0; s < segments && skyX[s] + w <= width; s++) {
+        int y = 0;
+        for (int t = s; t < segments && skyX[t] < skyX[s] + w; t++) y = Math.max(y, skyY[t]);
+        if (y + h < bestY) {
+          best = s;
+          bestY = y + h;
+        }
+      }
+      int x = skyX[best];
+      xs[k] = x;
+      ys[k] = bestY - h;
+      height = Math.max(height, bestY);
+
+      // Replace the segments the rectangle covers with one along its bottom edge, keeping
+      // the rest of the last covered segment.
+      int last = best;
+      while (last + 1 < segments && skyX[last + 1] < x + w) last++;
+      int restX = x + w, restY = skyY[last];
+      boolean rest = restX < (last + 1 < segments ? skyX[last + 1] : width);
+      int inserted = rest ? 2 : 1;
+      int removed = last - best + 1;
+      System.arraycopy(skyX, last + 1, skyX, best + inserted, segments - last - 1);
+      System.arraycopy(skyY, last + 1, skyY, best + inserted, segments - last - 1);
+      segments += inserted - removed;
+      skyY[best] = bestY;
+      if (rest) {
+        skyX[best + 1] = restX;
+        skyY[best + 1] = restY;
+      }
+    }
+    return height;
+  }
+
+  // Copy the (loaded) image into the atlas with its border at the given top left corner,
+  // repeating its edge pixels into the border.
+  private static void copy(Image image, PImage atlas, int x, int y) {
+    PImage source = image.image;
+    if (source.pixels == null) source.loadPixels();
+    int opaque = source.format == PConstants.RGB ? 0xff000000 : 0;
+    int w = image.pixelWidth(), h = image.pixelHeight();
+    for (int dy = -PADDING; dy < h + PADDING; dy++) {
+      int sourceRow = (image.atlasY() + Math.max(0, Math.min(h - 1, dy))) * source.width + image.atlasX();
+      int row = (y + PADDING + dy) * atlas.width + x + PADDING;
+      for (int dx = -PADDING; dx < w + PADDING; dx++) {
+        atlas.pixels[row + dx] = source.pixels[sourceRow + Math.max(0, Math.min(w - 1, dx))] | opaque;
+      }
+    }
+  }
+
+  /**
+   * @return the index-th of the packed images, in the order they were given.
+   * @throws IndexOutOfBoundsException if there is no such image.
+   */
+  public Image get(int index) {
+    return images.get(index);
+  }
+
+  /** @return the packed images, in the order they were given. */
+  public List<Image> images() {
+    return images;
+  }
+
+  /** @return the number of packed images. */
+  public int size() {
+    return images.size();
+  }
+
+  /** @return the width of the atlas the images are packed into. */
+  public double width() {
+    return atlas.width;
+  }
+
+  /** @return the height of the atlas the images are packed into. */
+  public double height() {
+    return atlas.height;
+  }
+}
@@ -0,0 +1,138 @@
+package processingwrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * The process-wide cache of images loaded from files, so that loading the
+ * same file from many places decodes it once and keeps one copy of its
+ * pixels. Images are keyed by the canonical path of the file and its
+ * modification time, so a file that changes on disk is loaded again.
+ *
+ * The cache holds at most a budget of decoded pixel memory. When a newly
+ * loaded image exceeds it, the least recently requested images are
+ * dropped from the cache (images still referenced elsewhere stay usable).
+ *
+ * Not externally accessible! Used through {@link Image}.
+ */
+final class ImageCache {
+  // Default cap on the pixel memory of all cached images: 256 MiB.
+  static final long DEFAULT_BUDGET_BYTES = 256L << 20;
+
+  private static final ImageCache INSTANCE = new ImageCache();
+
+  private static final class Key {
+    final String path;
+    final long lastModified;
+
+    Key(String path, long lastModified) {
+      this.path = path;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return path.equals(k.path) && lastModified == k.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, lastModified);
+    }
+  }
+
+  private static final class Entry {
+    final Image image;
+    // Zero until the image has loaded.
+    long bytes;
+
+    Entry(Image image) {
+      this.image = image;
+    }
+  }
+
+  // In access order, so that iteration starts at the least recently requested image.
+  private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long budgetBytes = DEFAULT_BUDGET_BYTES;
+  private long residentBytes;
+  private long hits, misses, evictions;
+
+  private ImageCache() {
+  }
+
+  static ImageCache instance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the cached image of the file if there is one (which may still be
+   * loading); otherwise a new image, which is cached and loaded on the given
+   * executor.
+   */
+  Image get(String file, Executor executor) {
+    File f = new File(file);
+    Key key = new Key(canonicalPath(f), f.lastModified());
+    Image image;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+        return entry.image;
+      }
+      misses++;
+      image = new Image();
+      entries.put(key, new Entry(image));
+    }
+    image.loaded().whenComplete((loaded, e) -> onLoaded(key, image, e == null));
+    executor.execute(() -> image.load(file));
+    return image;
+  }
+
+  private static String canonicalPath(File f) {
+    try {
+      return f.getCanonicalPath();
+    } catch (IOException e) {
+      return f.getAbsolutePath();
+    }
+  }
+
+  // Account for the memory of a loaded image, or forget an image that failed to load.
+  private synchronized void onLoaded(Key key, Image image, boolean succeeded) {
+    Entry entry = entries.get(key);
+    if (entry == null || entry.image != image) return;  // Already evicted.
+    if (!succeeded) {
+      entries.remove(key);
+      return;
+    }
+    entry.bytes = 4L * (long) image.width() * (long) image.height();
+    residentBytes += entry.bytes;
+    evictOverBudget();
+  }
+
+  // Drop least recently requested images until the cache fits in its budget.
+  private void evictOverBudget() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (residentBytes > budgetBytes && it.hasNext()) {
+      Entry eldest = it.next();
+      it.remove();
+      residentBytes -= eldest.bytes;
+      evictions++;
+    }
+  }
+
+  synchronized void setBudget(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    evictOverBudget();
+  }
+
+  synchronized ImageCacheStats stats() {
+    return new ImageCacheStats(hits, misses, evictions, entries.size(), residentBytes, budgetBytes);
+  }
+}
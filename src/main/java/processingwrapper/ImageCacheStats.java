@@ -0,0 +1,61 @@
+package processingwrapper;
+
+/**
+ * A snapshot of the statistics of the cache that {@link Image#ofFile},
+ * {@link Image#ofFileAsync} and {@link Image#loadAll} load images through.
+ * An instance is obtained from {@link Image#cacheStats}. An
+ * {@link ImageCacheStats} instance is immutable.
+ */
+public class ImageCacheStats {
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final int images;
+  private final long residentBytes;
+  private final long budgetBytes;
+
+  ImageCacheStats(long hits, long misses, long evictions, int images, long residentBytes, long budgetBytes) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.images = images;
+    this.residentBytes = residentBytes;
+    this.budgetBytes = budgetBytes;
+  }
+
+  /** @return the number of image requests that were answered from the cache. */
+  public long hits() {
+    return hits;
+  }
+
+  /** @return the number of image requests that had to load the file. */
+  public long misses() {
+    return misses;
+  }
+
+  /** @return the number of images dropped from the cache to stay within its budget. */
+  public long evictions() {
+    return evictions;
+  }
+
+  /** @return the number of images currently in the cache. */
+  public int images() {
+    return images;
+  }
+
+  /** @return the pixel memory, in bytes, of the loaded images currently in the cache. */
+  public long residentBytes() {
+    return residentBytes;
+  }
+
+  /** @return the maximum pixel memory, in bytes, that the cache keeps. */
+  public long budgetBytes() {
+    return budgetBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ImageCacheStats(hits=%d, misses=%d, evictions=%d, images=%d, resident=%d/%d bytes)",
+        hits, misses, evictions, images, residentBytes, budgetBytes);
+  }
+}
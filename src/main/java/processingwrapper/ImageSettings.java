@@ -6,7 +6,8 @@ import java.awt.Color;
 
 /**
  * The {@link ImageSettings} class is used to define the aesthetic properties of an Image. An {@link ImageSettings}
- * instance is immutable; once created, any modifications will return a new instance.
+ * instance is immutable; once created, any modifications will return a new instance. Asking for the same settings
+ * again may return the same instance, so instances should not be compared by identity.
  */
 public class ImageSettings {
   // Processing uses white to specify a tint with no color.
@@ -17,26 +18,32 @@ public class ImageSettings {
   // size, we'll be able to check for NaN and use the loaded image's size.
   private static final double DEFAULT_SIZE = NaN;
 
+  // Instances are interned (see Interned), so that asking for the same settings
+  // again, e.g. every frame, returns the same instance rather than a new one.
+  private static final ImageSettings[] INTERNED = new ImageSettings[Interned.SLOTS];
+
   private final Color tint;
   private final double width;
   private final double height;
 
-  private ImageSettings(Color tint) {
+  private ImageSettings(Color tint, double width, double height) {
     this.tint = tint;
-    this.width = DEFAULT_SIZE;
-    this.height = DEFAULT_SIZE;
-  }
-
-  private ImageSettings(double width, double height) {
-    this.tint = NO_TINT;
     this.width = width;
     this.height = height;
   }
 
-  private ImageSettings(Color tint, double width, double height) {
-    this.tint = tint;
-    this.width = width;
-    this.height = height;
+  // The interned instance with the given values.
+  private static ImageSettings of(Color tint, double width, double height) {
+    int rgb = tint.getRGB();
+    long widthBits = Double.doubleToLongBits(width), heightBits = Double.doubleToLongBits(height);
+    int slot = Interned.slot(rgb, widthBits, heightBits);
+    ImageSettings settings = INTERNED[slot];
+    if (settings == null || settings.tint.getRGB() != rgb || Double.doubleToLongBits(settings.width) != widthBits
+        || Double.doubleToLongBits(settings.height) != heightBits) {
+      settings = new ImageSettings(tint, width, height);
+      INTERNED[slot] = settings;
+    }
+    return settings;
   }
 
   /**
@@ -64,20 +71,20 @@ public class ImageSettings {
    * Creates an {@link ImageSettings} instance with the given tint.
    *
    * @param tint The tint to set.
-   * @return A new {@link ImageSettings} instance.
+   * @return An {@link ImageSettings} instance.
    */
   public static ImageSettings createWithTint(Color tint) {
-    return new ImageSettings(tint);
+    return of(tint, DEFAULT_SIZE, DEFAULT_SIZE);
   }
 
   /**
    * Creates a new {@link ImageSettings} instance with the given tint and the settings of the calling instance.
    *
    * @param tint the tint to set.
-   * @return A new {@link ImageSettings} instance.
+   * @return An {@link ImageSettings} instance.
    */
   public ImageSettings withTint(Color tint) {
-    return new ImageSettings(tint, this.width, this.height);
+    return of(tint, this.width, this.height);
   }
 
   /**
@@ -85,10 +92,10 @@ public class ImageSettings {
    *
    * @param width  the width to set.
    * @param height the height to set.
-   * @return A new {@link ImageSettings} instance.
+   * @return An {@link ImageSettings} instance.
    */
   public static ImageSettings createWithSize(double width, double height) {
-    return new ImageSettings(width, height);
+    return of(NO_TINT, width, height);
   }
 
   /**
@@ -97,9 +104,9 @@ public class ImageSettings {
    *
    * @param width  the width to set.
    * @param height the height to set.
-   * @return A new {@link ImageSettings} instance.
+   * @return An {@link ImageSettings} instance.
    */
   public ImageSettings withSize(double width, double height) {
-    return new ImageSettings(this.tint, width, height);
+    return of(this.tint, width, height);
   }
 }
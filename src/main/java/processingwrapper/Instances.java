@@ -0,0 +1,74 @@
+package processingwrapper;
+
+/**
+ * The positions of the copies of a shape drawn with a single call of
+ * {@link Canvas#drawInstances}, which are recorded as one command. The
+ * positions are relative to the position of the command, and are copied
+ * into primitive arrays when recorded, so an instance is immutable.
+ *
+ * Not externally accessible! Only used by {@link CommandBuffer} and {@link Canvas}.
+ */
+final class Instances {
+  private final float[] xs, ys;
+  // The bounding box of the positions.
+  private final float minX, minY, maxX, maxY;
+  private final long hash;
+
+  Instances(double[] xs, double[] ys) {
+    assert(xs.length == ys.length && xs.length > 0);
+    this.xs = new float[xs.length];
+    this.ys = new float[ys.length];
+    float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+    long hash = xs.length;
+    for (int k = 0; k < xs.length; k++) {
+      float x = (float) xs[k], y = (float) ys[k];
+      this.xs[k] = x;
+      this.ys[k] = y;
+      minX = Math.min(minX, x);
+      minY = Math.min(minY, y);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+      hash = (hash ^ Float.floatToIntBits(x)) * 0x9e3779b97f4a7c15L;
+      hash = (hash ^ Float.floatToIntBits(y)) * 0x9e3779b97f4a7c15L;
+    }
+    this.minX = minX;
+    this.minY = minY;
+    this.maxX = maxX;
+    this.maxY = maxY;
+    this.hash = hash;
+  }
+
+  int count() {
+    return xs.length;
+  }
+
+  float x(int k) {
+    return xs[k];
+  }
+
+  float y(int k) {
+    return ys[k];
+  }
+
+  float minX() {
+    return minX;
+  }
+
+  float minY() {
+    return minY;
+  }
+
+  float maxX() {
+    return maxX;
+  }
+
+  float maxY() {
+    return maxY;
+  }
+
+  /** @return a hash of the positions. */
+  long contentHash() {
+    return hash;
+  }
+}
@@ -0,0 +1,33 @@
+package processingwrapper;
+
+/**
+ * Helpers for the caches through which the factories of immutable values
+ * ({@link ShapeSettings}, {@link ImageSettings} and the {@link Shape}s)
+ * return an existing instance instead of allocating a new one when asked
+ * for the same values again, as animation loops do every frame.
+ *
+ * Each cache is an array of {@link #SLOTS} instances, indexed by a hash of
+ * their values, that keeps the most recently created instance per slot. A
+ * lookup allocates nothing, and a miss just replaces the slot, so there is
+ * no eviction to manage. The arrays are read and written without locking:
+ * the cached classes only have final fields, so an instance that one thread
+ * put into a slot is always seen fully constructed by another, and at worst
+ * a racing thread creates an equal instance of its own.
+ *
+ * Not externally accessible!
+ */
+final class Interned {
+  // A power of two, so that a hash is turned into a slot by masking.
+  static final int SLOTS = 1024;
+
+  private Interned() {
+  }
+
+  /** @return the slot for values with the given bits. */
+  static int slot(long a, long b, long c) {
+    long h = a * 0x9e3779b97f4a7c15L;
+    h = (h ^ b ^ (h >>> 29)) * 0x9e3779b97f4a7c15L;
+    h = (h ^ c ^ (h >>> 29)) * 0x9e3779b97f4a7c15L;
+    return (int) (h >>> 32) & (SLOTS - 1);
+  }
+}
@@ -0,0 +1,77 @@
+package processingwrapper;
+
+import processing.awt.PGraphicsJava2D;
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+import java.util.function.BiFunction;
+
+/**
+ * Runs a {@link ProcessingApp} without a window: each frame is drawn and
+ * committed into an offscreen Java2D graphics by a {@link FrameLoop}, whose pixels can then be read
+ * back. Frames are rendered as soon as they are asked for, rather than at the
+ * display frame rate.
+ *
+ * Not externally accessible! Used by {@link ProcessingApp#renderOffscreen} and
+ * {@link ProcessingApp#recordOffscreen}.
+ */
+final class OffscreenRenderer {
+  private final int width, height;
+  private final PGraphics graphics;
+  private final FrameLoop loop;
+
+  OffscreenRenderer(BiFunction<Double, Double, ProcessingApp> appConstructor, double width, double height,
+                    AppSettings settings) {
+    this.width = (int) width;
+    this.height = (int) height;
+    if (this.width <= 0 || this.height <= 0) throw new IllegalArgumentException("size not positive");
+
+    graphics = createGraphics(this.width, this.height);
+    ProcessingApp app = appConstructor.apply(width, height);
+    // Frames must not depend on how fast they are rendered.
+    if (app instanceof SimulatedApp) ((SimulatedApp<?>) app).stepByFrame();
+    loop = new FrameLoop(app, width, height, graphics, settings);
+  }
+
+  /**
+   * @return a Java2D graphics of the given size, whose parent is a sketch that is never
+   * run: it only exists so that graphics and shapes can be created.
+   */
+  static PGraphics createGraphics(int width, int height) {
+    PApplet applet = new PApplet();
+    PGraphics graphics = new PGraphicsJava2D();
+    graphics.setParent(applet);
+    graphics.setPrimary(false);
+    graphics.setSize(width, height);
+    applet.g = graphics;
+    applet.width = width;
+    applet.height = height;
+    return graphics;
+  }
+
+  int width() {
+    return width;
+  }
+
+  int height() {
+    return height;
+  }
+
+  /**
+   * Draw and commit the next frame.
+   * @return the pixels of the frame, row by row, as ARGB colors. The array is
+   * owned by the renderer and overwritten by the next frame.
+   */
+  int[] renderFrame() {
+    graphics.beginDraw();
+    loop.drawFrame();
+    graphics.endDraw();
+    graphics.loadPixels();
+    return graphics.pixels;
+  }
+
+  void dispose() {
+    loop.dispose();
+    graphics.dispose();
+  }
+}
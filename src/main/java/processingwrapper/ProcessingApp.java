@@ -2,6 +2,8 @@ package processingwrapper;
 
 import processing.core.PApplet;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.function.BiFunction;
 
@@ -23,11 +25,40 @@ public interface ProcessingApp {
    * @param windowHeight   The window height
    */
   static void start(BiFunction<Double, Double, ProcessingApp> appConstructor, double windowWidth, double windowHeight) {
+    start(appConstructor, windowWidth, windowHeight, AppSettings.createDefault());
+  }
+
+  /**
+   * Starts running the supplied ProcessingApp, recording every frame drawn to the window
+   * with the recorder. The recorder is closed when the app exits. Equivalent to
+   * {@code start(appConstructor, windowWidth, windowHeight, AppSettings.createDefault().withRecorder(recorder))}.
+   *
+   * @param appConstructor A constructor which creates a ProcessingApp given the width and height
+   * @param windowWidth    The window width
+   * @param windowHeight   The window height
+   * @param recorder       The recorder to record the frames with
+   */
+  static void start(BiFunction<Double, Double, ProcessingApp> appConstructor, double windowWidth, double windowHeight,
+                    FrameRecorder recorder) {
+    start(appConstructor, windowWidth, windowHeight, AppSettings.createDefault().withRecorder(recorder));
+  }
+
+  /**
+   * Starts running the supplied ProcessingApp with the given settings, which can e.g.
+   * record its frames, or report statistics about them to listeners and on the screen.
+   *
+   * @param appConstructor A constructor which creates a ProcessingApp given the width and height
+   * @param windowWidth    The window width
+   * @param windowHeight   The window height
+   * @param settings       How to run the app
+   */
+  static void start(BiFunction<Double, Double, ProcessingApp> appConstructor, double windowWidth, double windowHeight,
+                    AppSettings settings) {
     Objects.requireNonNull(appConstructor);
-    Canvas mainCanvas = Canvas.of(windowWidth, windowHeight);
+    Objects.requireNonNull(settings);
 
     class WrapperPApplet extends PApplet {
-      private ProcessingApp app;
+      private FrameLoop loop;
 
       @Override
       public void settings() {
@@ -37,14 +68,19 @@ public interface ProcessingApp {
       @Override
       public void setup() {
         this.background(255);
-        app = appConstructor.apply(windowWidth, windowHeight);
+        loop = new FrameLoop(appConstructor.apply(windowWidth, windowHeight), windowWidth, windowHeight, g, settings);
       }
 
       @Override
       public void draw() {
-        this.background(255);
-        app.drawFrame(mainCanvas);
-        mainCanvas.commit(this);
+        loop.drawFrame();
+      }
+
+      @Override
+      public void dispose() {
+        if (loop != null) loop.dispose();
+        settings.recorder().ifPresent(FrameRecorder::close);
+        super.dispose();
       }
     }
 
@@ -52,6 +88,84 @@ public interface ProcessingApp {
     PApplet.runSketch(args, new WrapperPApplet());
   }
 
+  /**
+   * Runs the supplied ProcessingApp without opening a window, e.g. to produce frames
+   * on a machine without a display. Frames are drawn one after the other as fast as
+   * possible, rather than at the display frame rate; {@link #drawFrame} and
+   * {@link #frameRendered} are called for each frame just as with {@link #start}.
+   * A {@link SimulatedApp} is updated once per frame.
+   *
+   * @param appConstructor A constructor which creates a ProcessingApp given the width and height
+   * @param width          The width of the frames
+   * @param height         The height of the frames
+   * @param frames         The number of frames to render
+   * @return the pixels of each frame, row by row, as ARGB colors.
+   * @throws IllegalArgumentException if the size is not positive or frames is negative.
+   */
+  static List<int[]> renderOffscreen(BiFunction<Double, Double, ProcessingApp> appConstructor,
+                                     double width, double height, int frames) {
+    return renderOffscreen(appConstructor, width, height, frames, AppSettings.createDefault());
+  }
+
+  /**
+   * Runs the supplied ProcessingApp without opening a window, like
+   * {@link #renderOffscreen(BiFunction, double, double, int)}, with the given settings
+   * (e.g. to render the frames in software, see {@link AppSettings#withSoftwareRendering}).
+   * A recorder in the settings records every frame, but is not closed.
+   *
+   * @param appConstructor A constructor which creates a ProcessingApp given the width and height
+   * @param width          The width of the frames
+   * @param height         The height of the frames
+   * @param frames         The number of frames to render
+   * @param settings       The settings to run the app with
+   * @return the pixels of each frame, row by row, as ARGB colors.
+   * @throws IllegalArgumentException if the size is not positive or frames is negative.
+   */
+  static List<int[]> renderOffscreen(BiFunction<Double, Double, ProcessingApp> appConstructor,
+                                     double width, double height, int frames, AppSettings settings) {
+    Objects.requireNonNull(appConstructor);
+    Objects.requireNonNull(settings);
+    if (frames < 0) throw new IllegalArgumentException("frames negative");
+    OffscreenRenderer renderer = new OffscreenRenderer(appConstructor, width, height, settings);
+    try {
+      List<int[]> pixels = new ArrayList<>(frames);
+      for (int frame = 0; frame < frames; frame++) {
+        pixels.add(renderer.renderFrame().clone());
+      }
+      return pixels;
+    } finally {
+      renderer.dispose();
+    }
+  }
+
+  /**
+   * Runs the supplied ProcessingApp without opening a window, like {@link #renderOffscreen},
+   * and records every frame with the recorder instead of returning the pixels. The recorder
+   * is not closed, so that the frames of several runs can be recorded together.
+   *
+   * @param appConstructor A constructor which creates a ProcessingApp given the width and height
+   * @param width          The width of the frames
+   * @param height         The height of the frames
+   * @param frames         The number of frames to render
+   * @param recorder       The recorder to record the frames with
+   * @throws IllegalArgumentException if the size is not positive or frames is negative.
+   */
+  static void recordOffscreen(BiFunction<Double, Double, ProcessingApp> appConstructor,
+                              double width, double height, int frames, FrameRecorder recorder) {
+    Objects.requireNonNull(appConstructor);
+    Objects.requireNonNull(recorder);
+    if (frames < 0) throw new IllegalArgumentException("frames negative");
+    OffscreenRenderer renderer =
+        new OffscreenRenderer(appConstructor, width, height, AppSettings.createDefault().withRecorder(recorder));
+    try {
+      for (int frame = 0; frame < frames; frame++) {
+        renderer.renderFrame();
+      }
+    } finally {
+      renderer.dispose();
+    }
+  }
+
   /**
    * Once an app is started, this method is called once per frame. The implementer
    * of this method should write the logic to draw the appropriate entities on
@@ -59,9 +173,20 @@ public interface ProcessingApp {
    * calls to {@link Canvas#draw(Drawable, Position)} (or one of its overloadings).
    * Note that the main canvas (and all of its subcanvases) will be cleared following
    * the execution of this method, so the whole canvas should be reconstructed
-   * each time this method executes.
+   * each time this method executes. The exception is subcanvases created with
+   * {@link Canvas#retained}, which keep their contents and only need to be
+   * drawn on the main canvas.
    *
    * @param mainCanvas The main canvas to draw on.
    */
   void drawFrame(Canvas mainCanvas);
-}
\ No newline at end of file
+
+  /**
+   * Called after each frame has been drawn to the screen, with statistics
+   * about how it was drawn. Does nothing unless overridden.
+   *
+   * @param stats Statistics about the frame that was just drawn.
+   */
+  default void frameRendered(FrameStats stats) {
+  }
+}
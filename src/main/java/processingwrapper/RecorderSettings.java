@@ -0,0 +1,104 @@
+package processingwrapper;
+
+import java.util.Objects;
+
+/**
+ * The {@link RecorderSettings} class is used to define how a {@link FrameRecorder} hands frames
+ * to its encoder threads. A {@link RecorderSettings} instance is immutable; once created, any
+ * modifications will return a new instance.
+ */
+public class RecorderSettings {
+
+  /**
+   * The {@link Backpressure} class is used to specify what happens to a frame that is recorded
+   * while the queue of frames waiting to be encoded is full.
+   */
+  public enum Backpressure {
+    /** Wait until the encoders have made room for the frame. No frame is lost, but drawing slows down. */
+    BLOCK,
+    /** Drop the frame. Drawing never waits for the encoders, but the recording may skip frames. */
+    DROP
+  }
+
+  private static final RecorderSettings DEFAULT =
+      new RecorderSettings(8, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+          Backpressure.BLOCK);
+
+  private final int queueCapacity;
+  private final int encoderThreads;
+  private final Backpressure backpressure;
+
+  private RecorderSettings(int queueCapacity, int encoderThreads, Backpressure backpressure) {
+    this.queueCapacity = queueCapacity;
+    this.encoderThreads = encoderThreads;
+    this.backpressure = backpressure;
+  }
+
+  /**
+   * @return The number of frames that can wait to be encoded before the backpressure policy applies.
+   */
+  public int queueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * @return The number of background threads that encode frames.
+   */
+  public int encoderThreads() {
+    return encoderThreads;
+  }
+
+  /**
+   * @return What happens to a frame that is recorded while the queue is full.
+   */
+  public Backpressure backpressure() {
+    return backpressure;
+  }
+
+  /**
+   * Creates a {@link RecorderSettings} instance with a queue of 8 frames, up to 4 encoder threads,
+   * and {@link Backpressure#BLOCK}.
+   *
+   * @return A {@link RecorderSettings} instance with the default settings.
+   */
+  public static RecorderSettings createDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Creates a new {@link RecorderSettings} instance with the given queue capacity and the settings
+   * of the calling instance.
+   *
+   * @param queueCapacity The number of frames that can wait to be encoded.
+   * @return A new {@link RecorderSettings} instance.
+   * @throws IllegalArgumentException if the capacity is not positive.
+   */
+  public RecorderSettings withQueueCapacity(int queueCapacity) {
+    if (queueCapacity <= 0) throw new IllegalArgumentException("queueCapacity not positive");
+    return new RecorderSettings(queueCapacity, this.encoderThreads, this.backpressure);
+  }
+
+  /**
+   * Creates a new {@link RecorderSettings} instance with the given number of encoder threads and
+   * the settings of the calling instance.
+   *
+   * @param encoderThreads The number of background threads that encode frames.
+   * @return A new {@link RecorderSettings} instance.
+   * @throws IllegalArgumentException if the number is not positive.
+   */
+  public RecorderSettings withEncoderThreads(int encoderThreads) {
+    if (encoderThreads <= 0) throw new IllegalArgumentException("encoderThreads not positive");
+    return new RecorderSettings(this.queueCapacity, encoderThreads, this.backpressure);
+  }
+
+  /**
+   * Creates a new {@link RecorderSettings} instance with the given backpressure policy and the
+   * settings of the calling instance.
+   *
+   * @param backpressure What happens to a frame that is recorded while the queue is full.
+   * @return A new {@link RecorderSettings} instance.
+   */
+  public RecorderSettings withBackpressure(Backpressure backpressure) {
+    return new RecorderSettings(this.queueCapacity, this.encoderThreads, Objects.requireNonNull(backpressure));
+  }
+}
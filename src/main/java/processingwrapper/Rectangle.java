@@ -10,20 +10,31 @@ import java.util.Objects;
  * can be created combining an rectangle with drawing settings.
  */
 public class Rectangle extends Shape {
+
+  // Instances are interned (see Interned), so that asking for a rectangle with the
+  // same size again returns the same instance rather than a new one.
+  private static final Rectangle[] INTERNED = new Rectangle[Interned.SLOTS];
   
   private Rectangle(double width, double height) {
     super(width, height);
   }
 
   /**
-   * Create a new rectangle with the specified width and height.
+   * Create a rectangle with the specified width and height. Asking for the same size again may
+   * return the same instance.
    * @throws IllegalArgumentException if the width and height are not
    *   positive, finite doubles.
    */
   public static Rectangle of(double width, double height) {
     if (!isPositive(width)) throw new IllegalArgumentException("width");
     if (!isPositive(height)) throw new IllegalArgumentException("height");
-    return new Rectangle(width, height);
+    int slot = Interned.slot(Double.doubleToLongBits(width), Double.doubleToLongBits(height), 0);
+    Rectangle rectangle = INTERNED[slot];
+    if (rectangle == null || rectangle.width != width || rectangle.height != height) {
+      rectangle = new Rectangle(width, height);
+      INTERNED[slot] = rectangle;
+    }
+    return rectangle;
   }
   
   @Override
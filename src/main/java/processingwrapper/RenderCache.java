@@ -0,0 +1,178 @@
+package processingwrapper;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Offscreen copies of nested canvases whose contents do not change from
+ * frame to frame. Instead of replaying such a canvas's draw calls every
+ * frame, {@link Canvas} rasterises it once into a {@link PGraphics} and
+ * then draws that image, until the canvas's content hash changes.
+ *
+ * A canvas is cached if the user asked for it with
+ * {@link Canvas#setCacheable}, or, if automatic caching is on (see
+ * {@link AppSettings#withAutoCaching}), once its content hash has stayed
+ * the same for {@link #AUTO_CACHE_AFTER} frames in a row.
+ *
+ * A canvas is rendered at the same fraction of a pixel as it is drawn at,
+ * and cut off where the canvases it is drawn within cut it off, so that its
+ * image has the pixels it would have drawn directly (including the
+ * anti-aliased edges where it is cut off); the image is rendered again if
+ * the canvas moves by a fraction of a pixel or is cut off differently.
+ * The total size of all offscreen images is capped; when a new image
+ * would exceed the cap, the least recently drawn ones are dropped. Images
+ * of canvases that have not been drawn for {@link #EVICT_AFTER} frames are
+ * dropped as well, so that canvases the app no longer uses can be collected.
+ *
+ * Not externally accessible! One instance exists per running sketch.
+ */
+final class RenderCache {
+  // How many frames in a row a canvas must be unchanged before it is cached automatically.
+  static final int AUTO_CACHE_AFTER = 3;
+  // How many frames a cached image is kept for after its canvas was last drawn.
+  static final int EVICT_AFTER = 120;
+  // Default cap on the pixel memory of all cached images: 64 MiB.
+  static final long DEFAULT_BUDGET_BYTES = 64L << 20;
+
+  private static final class Entry {
+    final PGraphics graphics;
+    final long bytes;
+    long contentHash;
+    // The fractions of a pixel the canvas was rendered at, and the size it was cut off at.
+    double offsetX, offsetY, width, height;
+    // The frame the canvas was last drawn in.
+    long lastDrawn;
+
+    Entry(PGraphics graphics, long bytes) {
+      this.graphics = graphics;
+      this.bytes = bytes;
+    }
+  }
+
+  private final PApplet app;
+  private final long budgetBytes;
+  private final boolean autoCaching;
+  // In access order, so that iteration starts at the least recently drawn canvas.
+  private final Map<Canvas, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long residentBytes;
+  private long frame;
+
+  RenderCache(PApplet app) {
+    this(app, DEFAULT_BUDGET_BYTES, false);
+  }
+
+  RenderCache(PApplet app, long budgetBytes) {
+    this(app, budgetBytes, false);
+  }
+
+  RenderCache(PApplet app, long budgetBytes, boolean autoCaching) {
+    assert(budgetBytes >= 0);
+    this.app = app;
+    this.budgetBytes = budgetBytes;
+    this.autoCaching = autoCaching;
+  }
+
+  /**
+   * Start a new frame, dropping the images of canvases that have not been drawn
+   * for a while. Content hashes are memoised per frame.
+   */
+  void beginFrame() {
+    frame++;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry eldest = it.next();
+      if (frame - eldest.lastDrawn <= EVICT_AFTER) break;
+      it.remove();
+      release(eldest);
+    }
+  }
+
+  /** @return whether canvases that stay unchanged are cached without being marked cacheable. */
+  boolean cachesAutomatically() {
+    return autoCaching;
+  }
+
+  /** @return the number of the current frame. */
+  long frame() {
+    return frame;
+  }
+
+  /**
+   * @return the cached image of the canvas if it was rendered from contents
+   * with the given hash at the given fractions of a pixel and cut off at the
+   * given size, or null if it has to be (re-)rendered.
+   */
+  PGraphics lookup(Canvas canvas, long contentHash, double offsetX, double offsetY, double width, double height) {
+    Entry entry = entries.get(canvas);
+    if (entry == null || entry.contentHash != contentHash || entry.offsetX != offsetX || entry.offsetY != offsetY
+        || entry.width != width || entry.height != height) {
+      return null;
+    }
+    entry.lastDrawn = frame;
+    return entry.graphics;
+  }
+
+  /**
+   * Reserve an offscreen image into which the caller renders the canvas's
+   * contents (which have the given hash) with its top left corner at the given
+   * fractions of a pixel, which are in [0, 1), cut off at the given positive
+   * width and height (at most its own). The image is cleared and
+   * {@link PGraphics#beginDraw} has been called on it; the caller must call
+   * {@link PGraphics#endDraw}.
+   *
+   * @return the image, or null if the canvas is too big to be cached at all.
+   */
+  PGraphics reserve(Canvas canvas, long contentHash, double offsetX, double offsetY, double width, double height) {
+    int w = (int) Math.ceil(offsetX + width);
+    int h = (int) Math.ceil(offsetY + height);
+    long bytes = 4L * w * h;
+    if (bytes > budgetBytes) return null;
+
+    Entry entry = entries.get(canvas);
+    if (entry != null && (entry.graphics.width != w || entry.graphics.height != h)) {
+      invalidate(canvas);
+      entry = null;
+    }
+    if (entry == null) {
+      evictUntilFree(bytes);
+      PGraphics graphics = app.createGraphics(w, h);
+      entry = new Entry(graphics, bytes);
+      entries.put(canvas, entry);
+      residentBytes += bytes;
+    }
+    entry.contentHash = contentHash;
+    entry.offsetX = offsetX;
+    entry.offsetY = offsetY;
+    entry.width = width;
+    entry.height = height;
+    entry.lastDrawn = frame;
+    entry.graphics.beginDraw();
+    entry.graphics.clear();
+    return entry.graphics;
+  }
+
+  /** Drop the cached image of the canvas, if any. */
+  void invalidate(Canvas canvas) {
+    Entry entry = entries.remove(canvas);
+    if (entry != null) release(entry);
+  }
+
+  // Drop least recently drawn images until the given number of bytes fits in the budget.
+  private void evictUntilFree(long bytes) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (residentBytes + bytes > budgetBytes && it.hasNext()) {
+      Entry eldest = it.next();
+      it.remove();
+      release(eldest);
+    }
+  }
+
+  private void release(Entry entry) {
+    residentBytes -= entry.bytes;
+    entry.graphics.dispose();
+  }
+}
@@ -0,0 +1,242 @@
+package processingwrapper;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+import java.util.Arrays;
+
+/**
+ * A thin layer between {@link Canvas} and a {@link PGraphics} that
+ * remembers the drawing state last applied to the graphics (fill, stroke,
+ * stroke weight, shape and image modes, clip rectangle) and only forwards
+ * the calls that actually change it. Consecutive elements with the same
+ * settings therefore cost one set of state changes instead of one each.
+ *
+ * The tracked state is only correct if nothing else changes the graphics'
+ * state in the meantime, so {@link #reset} must be called whenever control
+ * comes back from code that may have (e.g. at the start of every frame).
+ *
+ * Not externally accessible! Only used when committing a canvas.
+ */
+final class RenderState {
+  // Marks a mode that has not been set since the last reset.
+  private static final int UNKNOWN = -1;
+
+  private final PGraphics g;
+
+  private boolean colorModeKnown;
+  private boolean fillKnown;
+  private int fillColor;
+  private boolean strokeKnown, strokeEnabled;
+  private int strokeColor;
+  private boolean strokeWeightKnown;
+  private float strokeWeight;
+  private int rectMode, ellipseMode, imageMode;
+  private boolean clipKnown;
+  private float clipX, clipY, clipWidth, clipHeight;
+
+  // Processing calls forwarded to, and skipped instead of, the graphics since the counters were reset.
+  private long issuedCalls, elidedCalls;
+  // Elements not drawn since the counters were reset, because they were entirely outside the clip rectangle.
+  private long culledElements;
+  // Elements drawn since the counters were reset, by Drawable.DrawableType ordinal.
+  private final long[] drawnElements = new long[Drawable.DrawableType.values().length];
+  // Clip rectangles set, and the deepest canvas drawn (the main canvas is depth 0), since the counters were reset.
+  private long clipCalls;
+  private int maxDepth;
+  // The list that canvases committed through this state are compiled into, or null until needed.
+  private FlatCommands compiled;
+
+  RenderState(PGraphics g) {
+    this.g = g;
+    reset();
+  }
+
+  /** @return the graphics that this state is applied to. */
+  PGraphics graphics() {
+    return g;
+  }
+
+  /** @return the list that canvases committed through this state are compiled into. */
+  FlatCommands compiled() {
+    if (compiled == null) compiled = new FlatCommands();
+    return compiled;
+  }
+
+  /** Forget the tracked state, so that the next call of each kind is forwarded. */
+  void reset() {
+    colorModeKnown = false;
+    fillKnown = false;
+    strokeKnown = false;
+    strokeWeightKnown = false;
+    rectMode = UNKNOWN;
+    ellipseMode = UNKNOWN;
+    imageMode = UNKNOWN;
+    clipKnown = false;
+  }
+
+  /** @return the number of calls forwarded to the graphics since {@link #resetCounters}. */
+  long issuedCalls() {
+    return issuedCalls;
+  }
+
+  /** @return the number of calls skipped since {@link #resetCounters}. */
+  long elidedCalls() {
+    return elidedCalls;
+  }
+
+  /** @return the number of elements culled since {@link #resetCounters}. */
+  long culledElements() {
+    return culledElements;
+  }
+
+  /** Count elements that were not drawn because they lay outside the clip rectangle. */
+  void countCulled(int count) {
+    culledElements += count;
+  }
+
+  /** @return the number of elements of the type drawn since {@link #resetCounters}. */
+  long drawnElements(Drawable.DrawableType type) {
+    return drawnElements[type.ordinal()];
+  }
+
+  /** Count an element that was drawn. */
+  void countDrawn(Drawable.DrawableType type) {
+    drawnElements[type.ordinal()]++;
+  }
+
+  /** Count elements of the same type that were drawn. */
+  void countDrawn(Drawable.DrawableType type, int count) {
+    drawnElements[type.ordinal()] += count;
+  }
+
+  /** @return the number of clip rectangles set on the graphics since {@link #resetCounters}. */
+  long clipCalls() {
+    return clipCalls;
+  }
+
+  /** @return the deepest nesting of the canvases drawn since {@link #resetCounters}. */
+  int maxDepth() {
+    return maxDepth;
+  }
+
+  /** Note that a canvas nested at the given depth was drawn. */
+  void countDepth(int depth) {
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  void resetCounters() {
+    issuedCalls = 0;
+    elidedCalls = 0;
+    culledElements = 0;
+    Arrays.fill(drawnElements, 0);
+    clipCalls = 0;
+    maxDepth = 0;
+  }
+
+  /** Add the counters of another state (e.g. one for an offscreen image) to this one's. */
+  void addCounters(RenderState other) {
+    issuedCalls += other.issuedCalls;
+    elidedCalls += other.elidedCalls;
+    culledElements += other.culledElements;
+    for (int i = 0; i < drawnElements.length; i++) drawnElements[i] += other.drawnElements[i];
+    clipCalls += other.clipCalls;
+    maxDepth = Math.max(maxDepth, other.maxDepth);
+  }
+
+  // Return whether a call is needed, counting it either way.
+  private boolean changes(boolean needed) {
+    if (needed) {
+      issuedCalls++;
+    } else {
+      elidedCalls++;
+    }
+    return needed;
+  }
+
+  /** Apply the fill, stroke and stroke weight of a shape. */
+  void shapeSettings(int fillColor, int strokeColor, float strokeWeight) {
+    if (strokeWeight != 0) {
+      strokeWeight(strokeWeight);
+      stroke(strokeColor);
+    } else {
+      noStroke();
+    }
+    fill(fillColor);
+  }
+
+  /** Set the fill color, given as an ARGB int. */
+  void fill(int argb) {
+    if (changes(!colorModeKnown)) {
+      g.colorMode(PApplet.RGB);
+      colorModeKnown = true;
+    }
+    if (changes(!fillKnown || fillColor != argb)) {
+      g.fill((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff, argb >>> 24);
+      fillKnown = true;
+      fillColor = argb;
+    }
+  }
+
+  /** Enable the stroke with the given color, given as an ARGB int. */
+  void stroke(int argb) {
+    if (changes(!strokeKnown || !strokeEnabled || strokeColor != argb)) {
+      g.stroke(argb);
+      strokeKnown = true;
+      strokeEnabled = true;
+      strokeColor = argb;
+    }
+  }
+
+  void noStroke() {
+    if (changes(!strokeKnown || strokeEnabled)) {
+      g.noStroke();
+      strokeKnown = true;
+      strokeEnabled = false;
+    }
+  }
+
+  void strokeWeight(float weight) {
+    if (changes(!strokeWeightKnown || strokeWeight != weight)) {
+      g.strokeWeight(weight);
+      strokeWeightKnown = true;
+      strokeWeight = weight;
+    }
+  }
+
+  void rectMode(int mode) {
+    if (changes(rectMode != mode)) {
+      g.rectMode(mode);
+      rectMode = mode;
+    }
+  }
+
+  void ellipseMode(int mode) {
+    if (changes(ellipseMode != mode)) {
+      g.ellipseMode(mode);
+      ellipseMode = mode;
+    }
+  }
+
+  void imageMode(int mode) {
+    if (changes(imageMode != mode)) {
+      g.imageMode(mode);
+      imageMode = mode;
+    }
+  }
+
+  /** Only allow drawing within the given rectangle, given by its top left corner and size. */
+  void clip(float x, float y, float width, float height) {
+    if (changes(!clipKnown || clipX != x || clipY != y || clipWidth != width || clipHeight != height)) {
+      // Processing interprets the clip rectangle according to the image mode.
+      imageMode(PApplet.CORNER);
+      g.clip(x, y, width, height);
+      clipCalls++;
+      clipKnown = true;
+      clipX = x;
+      clipY = y;
+      clipWidth = width;
+      clipHeight = height;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package processingwrapper;
+
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copies of images resampled to the sizes they are drawn at. Drawing an
+ * image at a size given by {@link ImageSettings} otherwise rescales the
+ * full-size image every frame; with this cache, the rescaling happens once
+ * and later frames copy an image that already has the right size.
+ *
+ * A copy is resampled the way Java2D scales the image when drawing it, with
+ * the same rendering hints, so that drawing the copy draws the same pixels as
+ * drawing the image scaled; copies are only made for Java2D graphics. A copy
+ * is only made the second time an image is drawn at a size it was recently
+ * drawn at, so that images whose size changes every frame (e.g. while
+ * zooming) do not pay for a copy that is never reused.
+ *
+ * Each image holds its own copies, at a few sizes, so that the cache never
+ * keeps an image alive. The pixel memory of all copies is capped; beyond the
+ * cap, the copies of the least recently drawn images are dropped (including
+ * those of images that have since been collected).
+ *
+ * Not externally accessible! Used when committing a canvas.
+ */
+final class ScaledImageCache {
+  // Default cap on the pixel memory of all scaled copies: 64 MiB.
+  static final long DEFAULT_BUDGET_BYTES = 64L << 20;
+  private static final int MAX_SIZES_PER_IMAGE = 4;
+
+  private static final ScaledImageCache INSTANCE = new ScaledImageCache(DEFAULT_BUDGET_BYTES);
+
+  /**
+   * The scaled copies of one image, oldest first, and the sizes it was recently
+   * drawn at without a copy. Held by the image, and guarded by the cache.
+   */
+  static final class Sizes {
+    private final PImage[] copies = new PImage[MAX_SIZES_PER_IMAGE];
+    private int count;
+    private long bytes;
+    // Recent sizes drawn at without a copy, in a ring; zero where none was.
+    private final int[] requestedWidths = new int[MAX_SIZES_PER_IMAGE];
+    private final int[] requestedHeights = new int[MAX_SIZES_PER_IMAGE];
+    private int nextRequest;
+
+    // Remember that the image was drawn at the size without a copy.
+    // Returns whether it was recently drawn at that size before.
+    private boolean request(int width, int height) {
+      for (int k = 0; k < MAX_SIZES_PER_IMAGE; k++) {
+        if (requestedWidths[k] == width && requestedHeights[k] == height) return true;
+      }
+      requestedWidths[nextRequest] = width;
+      requestedHeights[nextRequest] = height;
+      nextRequest = (nextRequest + 1) % MAX_SIZES_PER_IMAGE;
+      return false;
+    }
+
+    private void add(PImage copy) {
+      copies[count++] = copy;
+      bytes += bytes(copy);
+    }
+
+    private void removeOldest() {
+      bytes -= bytes(copies[0]);
+      System.arraycopy(copies, 1, copies, 0, count - 1);
+      copies[--count] = null;
+    }
+
+    private void clear() {
+      while (count > 0) removeOldest();
+    }
+  }
+
+  private final long budgetBytes;
+  // The copies of the images that have any, least recently drawn first. Keyed by the
+  // copies rather than by the images, so that images that are no longer drawn can be
+  // collected; their copies stay counted here until they are evicted.
+  private final Map<Sizes, Boolean> resident = new LinkedHashMap<>(16, 0.75f, true);
+  private long residentBytes;
+
+  ScaledImageCache(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  static ScaledImageCache instance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the (loaded) image resampled to the given positive size for drawing
+   * on the graphics at whole pixel coordinates, or null if the caller should draw
+   * the full-size image scaled instead. An image of an atlas is copied out of the
+   * atlas.
+   */
+  synchronized PImage get(Image image, int width, int height, PGraphics graphics) {
+    PImage full = image.image;
+    if (!image.inAtlas() && full.width == width && full.height == height) return full;
+    // Other renderers scale images their own way, which a copy would not match.
+    if (!(graphics.getNative() instanceof Graphics2D)) return null;
+
+    Sizes sizes = image.scaledCopies;
+    if (sizes == null) {
+      sizes = new Sizes();
+      image.scaledCopies = sizes;
+    }
+    for (int k = 0; k < sizes.count; k++) {
+      PImage copy = sizes.copies[k];
+      if (copy.width == width && copy.height == height) {
+        resident.get(sizes);
+        return copy;
+      }
+    }
+    // Don't make a copy the first time, in case the image is never drawn at this size again.
+    if (!sizes.request(width, height)) return null;
+
+    long bytes = 4L * width * height;
+    if (bytes > budgetBytes) return null;
+    PImage copy = scale(image, width, height, (Graphics2D) graphics.getNative());
+
+    // Make room for the copy: drop this image's oldest copy if it has all it may keep,
+    // then the copies of the least recently drawn images, and last its own other copies.
+    if (resident.remove(sizes) != null) residentBytes -= sizes.bytes;
+    if (sizes.count == MAX_SIZES_PER_IMAGE) sizes.removeOldest();
+    while (residentBytes + sizes.bytes + bytes > budgetBytes && !resident.isEmpty()) evictEldest();
+    while (sizes.bytes + bytes > budgetBytes) sizes.removeOldest();
+    sizes.add(copy);
+    resident.put(sizes, Boolean.TRUE);
+    residentBytes += sizes.bytes;
+    return copy;
+  }
+
+  // Resample the (loaded) image to the size like the graphics draws it scaled.
+  private static PImage scale(Image image, int width, int height, Graphics2D target) {
+    PImage full = image.image;
+    int u = image.atlasX(), v = image.atlasY();
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g2 = scaled.createGraphics();
+    g2.setRenderingHints(target.getRenderingHints());
+    g2.drawImage((BufferedImage) full.getNative(), 0, 0, width, height,
+        u, v, u + image.pixelWidth(), v + image.pixelHeight(), null);
+    g2.dispose();
+    PImage copy = new PImage(width, height, full.format);
+    scaled.getRGB(0, 0, width, height, copy.pixels, 0, width);
+    return copy;
+  }
+
+  private void evictEldest() {
+    Iterator<Sizes> it = resident.keySet().iterator();
+    Sizes eldest = it.next();
+    it.remove();
+    residentBytes -= eldest.bytes;
+    eldest.clear();
+  }
+
+  private static long bytes(PImage copy) {
+    return 4L * copy.width * copy.height;
+  }
+}
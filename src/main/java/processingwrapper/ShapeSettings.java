@@ -5,31 +5,38 @@ import java.awt.Color;
 /**
  * The {@link ShapeSettings} class is used to define the aesthetic properties of the {@link Rectangle},
  * {@link Ellipse}, and {@link Circle} shapes. An {@link ShapeSettings} instance is immutable; once created, any
- * modifications will return a new instance.
+ * modifications will return a new instance. Asking for the same settings again may return the same instance, so
+ * instances should not be compared by identity.
  */
 public class ShapeSettings {
   private static final Color NO_COLOR = new Color(0, 0, 0, 0);
 
+  // Instances are interned (see Interned), so that asking for the same settings
+  // again, e.g. every frame, returns the same instance rather than a new one.
+  private static final ShapeSettings[] INTERNED = new ShapeSettings[Interned.SLOTS];
+
   private final Color fillColor;
   private final double strokeWeight;
   private final Color strokeColor;
 
-  private ShapeSettings(Color fillColor) {
+  private ShapeSettings(Color fillColor, double strokeWeight, Color strokeColor) {
     this.fillColor = fillColor;
-    this.strokeWeight = 0;
-    this.strokeColor = NO_COLOR;
-  }
-
-  private ShapeSettings(double strokeWeight, Color strokeColor) {
-    this.fillColor = NO_COLOR;
     this.strokeWeight = strokeWeight;
     this.strokeColor = strokeColor;
   }
 
-  private ShapeSettings(Color fillColor, double strokeWeight, Color strokeColor) {
-    this.fillColor = fillColor;
-    this.strokeWeight = strokeWeight;
-    this.strokeColor = strokeColor;
+  // The interned instance with the given values.
+  private static ShapeSettings of(Color fillColor, double strokeWeight, Color strokeColor) {
+    int fill = fillColor.getRGB(), stroke = strokeColor.getRGB();
+    long weight = Double.doubleToLongBits(strokeWeight);
+    int slot = Interned.slot(fill, stroke, weight);
+    ShapeSettings settings = INTERNED[slot];
+    if (settings == null || settings.fillColor.getRGB() != fill || settings.strokeColor.getRGB() != stroke
+        || Double.doubleToLongBits(settings.strokeWeight) != weight) {
+      settings = new ShapeSettings(fillColor, strokeWeight, strokeColor);
+      INTERNED[slot] = settings;
+    }
+    return settings;
   }
 
   /**
@@ -57,20 +64,20 @@ public class ShapeSettings {
    * Creates a {@link ShapeSettings} instance with the given fill color.
    *
    * @param fillColor The fill color to set.
-   * @return A new {@link ShapeSettings} instance.
+   * @return A {@link ShapeSettings} instance.
    */
   public static ShapeSettings createWithFill(Color fillColor) {
-    return new ShapeSettings(fillColor);
+    return of(fillColor, 0, NO_COLOR);
   }
 
   /**
    * Creates a new {@link ShapeSettings} instance with the given fill color and the settings of the calling instance.
    *
    * @param fillColor The fill color to set.
-   * @return A new {@link ShapeSettings} instance.
+   * @return A {@link ShapeSettings} instance.
    */
   public ShapeSettings withFill(Color fillColor) {
-    return new ShapeSettings(fillColor, this.strokeWeight, this.strokeColor);
+    return of(fillColor, this.strokeWeight, this.strokeColor);
   }
 
   /**
@@ -78,10 +85,10 @@ public class ShapeSettings {
    *
    * @param strokeWeight The stroke weight to set.
    * @param strokeColor  The stroke color to set.
-   * @return A new {@link ShapeSettings} instance.
+   * @return A {@link ShapeSettings} instance.
    */
   public static ShapeSettings createWithStroke(double strokeWeight, Color strokeColor) {
-    return new ShapeSettings(strokeWeight, strokeColor);
+    return of(NO_COLOR, strokeWeight, strokeColor);
   }
 
   /**
@@ -90,9 +97,9 @@ public class ShapeSettings {
    *
    * @param strokeWeight The stroke weight to set.
    * @param strokeColor  The stroke color to set.
-   * @return A new {@link ShapeSettings} instance.
+   * @return A {@link ShapeSettings} instance.
    */
   public ShapeSettings withStroke(double strokeWeight, Color strokeColor) {
-    return new ShapeSettings(this.fillColor, strokeWeight, strokeColor);
+    return of(this.fillColor, strokeWeight, strokeColor);
   }
 }
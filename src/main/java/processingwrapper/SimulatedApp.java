@@ -0,0 +1,148 @@
+package processingwrapper;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link ProcessingApp} whose state is updated at a fixed rate on its own
+ * thread, independently of how often frames are drawn. A slow frame then
+ * does not slow down the simulated world, and the simulation runs at the
+ * same speed whatever the frame rate.
+ *
+ * The state of the app is an immutable snapshot of type {@code S}. Every
+ * timestep, {@link #update} computes the next snapshot from the current
+ * one. Every frame, {@link #drawFrame(Canvas, Object, Object, double)} draws
+ * the two most recent snapshots, interpolated according to how far the
+ * frame lies between them; the drawn world therefore lags behind the
+ * simulation by up to one timestep, but moves smoothly even when frames and
+ * timesteps do not line up. The snapshots are handed from the update thread
+ * to the drawing thread without locks, so neither waits for the other.
+ *
+ * The update thread starts when the first frame is drawn, and stops when the
+ * app exits. Apps rendered with {@link ProcessingApp#renderOffscreen} or
+ * {@link ProcessingApp#recordOffscreen} have no update thread: instead, the
+ * state is updated exactly once per frame, so that the frames do not depend
+ * on how fast they were rendered.
+ *
+ * @param <S> The type of the snapshots of the state. Snapshots must not be
+ *            modified once they have been returned by {@link #update}.
+ */
+public abstract class SimulatedApp<S> implements ProcessingApp {
+  // If the updates fall behind by more than this many timesteps, they skip ahead.
+  private static final int MAX_CATCH_UP_STEPS = 5;
+
+  // The two most recent snapshots, and when the current one became due.
+  private static final class Snapshots<S> {
+    final S previous, current;
+    final long dueNanos;
+
+    Snapshots(S previous, S current, long dueNanos) {
+      this.previous = previous;
+      this.current = current;
+      this.dueNanos = dueNanos;
+    }
+  }
+
+  private final double timestep;
+  private final long timestepNanos;
+  private final AtomicReference<Snapshots<S>> snapshots;
+  // Set if update threw, to be rethrown on the drawing thread.
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+  private Thread updater;
+  private volatile boolean stopped;
+  // Whether the state is updated once per frame rather than on the update thread.
+  private boolean steppedByFrame;
+
+  /**
+   * @param initialState     The state before the first update.
+   * @param updatesPerSecond How many times per second {@link #update} is called.
+   * @throws IllegalArgumentException if updatesPerSecond is not positive.
+   */
+  protected SimulatedApp(S initialState, double updatesPerSecond) {
+    Objects.requireNonNull(initialState);
+    if (!(updatesPerSecond > 0)) throw new IllegalArgumentException("updatesPerSecond not positive");
+    this.timestep = 1 / updatesPerSecond;
+    this.timestepNanos = Math.max(1, Math.round(1e9 / updatesPerSecond));
+    this.snapshots = new AtomicReference<>(new Snapshots<>(initialState, initialState, System.nanoTime()));
+  }
+
+  /**
+   * Compute the state one timestep after the given state. Called on the update
+   * thread, so it must not touch canvases or anything else the drawing thread uses.
+   *
+   * @param state The current state, which must not be modified.
+   * @param dt    The timestep, in seconds.
+   * @return the next state (which may be the given state, if nothing changed).
+   */
+  protected abstract S update(S state, double dt);
+
+  /**
+   * Draw a frame of the state on the main canvas, like {@link ProcessingApp#drawFrame(Canvas)}.
+   *
+   * @param mainCanvas The main canvas to draw on.
+   * @param previous   The state before the most recent update.
+   * @param current    The state after the most recent update.
+   * @param alpha      How far the frame lies between the two states, from 0 (draw
+   *                   {@code previous}) to 1 (draw {@code current}).
+   */
+  protected abstract void drawFrame(Canvas mainCanvas, S previous, S current, double alpha);
+
+  /**
+   * Draws the most recent states through {@link #drawFrame(Canvas, Object, Object, double)}.
+   * @throws IllegalStateException if {@link #update} threw an exception.
+   */
+  @Override
+  public final void drawFrame(Canvas mainCanvas) {
+    Throwable t = failure.get();
+    if (t != null) throw new IllegalStateException("update failed", t);
+
+    if (steppedByFrame) {
+      Snapshots<S> s = snapshots.get();
+      drawFrame(mainCanvas, s.previous, s.current, 1);
+      snapshots.set(new Snapshots<>(s.current, update(s.current, timestep), s.dueNanos + timestepNanos));
+      return;
+    }
+
+    if (updater == null && !stopped) {
+      updater = new Thread(this::runUpdates, "simulation-" + getClass().getSimpleName());
+      updater.setDaemon(true);
+      updater.start();
+    }
+    Snapshots<S> s = snapshots.get();
+    double alpha = (double) (System.nanoTime() - s.dueNanos) / timestepNanos;
+    drawFrame(mainCanvas, s.previous, s.current, Math.max(0, Math.min(1, alpha)));
+  }
+
+  // Run by the update thread until the app exits.
+  private void runUpdates() {
+    long due = snapshots.get().dueNanos;
+    try {
+      while (!stopped) {
+        long next = due + timestepNanos;
+        long wait = next - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(this, wait);
+          continue;
+        }
+        due = -wait > MAX_CATCH_UP_STEPS * timestepNanos ? System.nanoTime() : next;
+        S current = snapshots.get().current;
+        snapshots.set(new Snapshots<>(current, update(current, timestep), due));
+      }
+    } catch (Throwable t) {
+      failure.set(t);
+    }
+  }
+
+  // Update the state once per frame from now on, instead of on the update thread.
+  void stepByFrame() {
+    assert(updater == null);
+    steppedByFrame = true;
+  }
+
+  // Stop the update thread, if it is running.
+  void stop() {
+    stopped = true;
+    if (updater != null) LockSupport.unpark(updater);
+  }
+}
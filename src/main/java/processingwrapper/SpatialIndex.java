@@ -0,0 +1,172 @@
+package processingwrapper;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the commands of a canvas, used to find the commands
+ * whose bounds overlap a rectangle without looking at every command. It
+ * speeds up culling of large canvases that are only partly visible, and
+ * hit-testing with {@link Canvas#elementsAt}.
+ *
+ * Each command is stored in every cell its bounds overlap. Commands that
+ * would overlap too many cells are kept in a separate list that every
+ * query looks at, as are nested canvases: those are always returned, since
+ * even a canvas that is not drawn has to be cleared as if it had been.
+ * The grid is rebuilt from scratch when the command buffer has changed
+ * since the last build, so it pays off on retained canvases that are drawn
+ * many times between changes.
+ *
+ * Not externally accessible! Only used by {@link Canvas}.
+ */
+final class SpatialIndex {
+  private static final int MAX_CELLS_PER_SIDE = 256;
+  // Commands overlapping more cells than this go into the oversized list.
+  private static final int MAX_CELLS_PER_COMMAND = 64;
+
+  private final double width, height;
+  private long builtVersion = -1;
+
+  private int columns, rows;
+  private double cellWidth, cellHeight;
+  // The commands in cell c are cellItems[cellStart[c] .. cellStart[c + 1]).
+  private int[] cellStart = new int[0];
+  private int[] cellItems = new int[0];
+  private int[] oversized = new int[0];
+  private int oversizedCount;
+
+  // Scratch space for queries. marks[i] == mark means command i was already collected.
+  private int[] marks = new int[0];
+  private int mark;
+  private int[] results = new int[0];
+
+  SpatialIndex(double width, double height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  /** Rebuild the grid if the commands changed since it was last built. */
+  void update(CommandBuffer commands) {
+    if (builtVersion == commands.version()) return;
+    builtVersion = commands.version();
+
+    int n = commands.size();
+    int side = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (int) Math.sqrt(n)));
+    columns = side;
+    rows = side;
+    cellWidth = width / columns;
+    cellHeight = height / rows;
+
+    if (marks.length < n) {
+      marks = new int[n];
+      results = new int[n];
+      oversized = new int[n];
+      mark = 0;
+    }
+    if (cellStart.length < columns * rows + 1) cellStart = new int[columns * rows + 1];
+    Arrays.fill(cellStart, 0, columns * rows + 1, 0);
+
+    // Count the commands per cell, turn the counts into start offsets, then fill in the commands.
+    oversizedCount = 0;
+    for (int i = 0; i < n; i++) {
+      if (!isGridded(commands, i)) continue;
+      int c0 = column(commands.left(i)), c1 = column(commands.right(i));
+      int r0 = row(commands.top(i)), r1 = row(commands.bottom(i));
+      for (int r = r0; r <= r1; r++) {
+        for (int c = c0; c <= c1; c++) cellStart[r * columns + c + 1]++;
+      }
+    }
+    for (int c = 0; c < columns * rows; c++) cellStart[c + 1] += cellStart[c];
+    if (cellItems.length < cellStart[columns * rows]) cellItems = new int[cellStart[columns * rows]];
+
+    int[] next = Arrays.copyOf(cellStart, columns * rows);
+    for (int i = 0; i < n; i++) {
+      if (commands.isRemoved(i)) continue;
+      if (commands.type(i) != Drawable.DrawableType.CANVAS && isOutside(commands, i)) continue;
+      if (!isGridded(commands, i)) {
+        oversized[oversizedCount++] = i;
+        continue;
+      }
+      int c0 = column(commands.left(i)), c1 = column(commands.right(i));
+      int r0 = row(commands.top(i)), r1 = row(commands.bottom(i));
+      for (int r = r0; r <= r1; r++) {
+        for (int c = c0; c <= c1; c++) cellItems[next[r * columns + c]++] = i;
+      }
+    }
+  }
+
+  // Whether the i-th command lies entirely outside the canvas, and so can never be seen or hit.
+  private boolean isOutside(CommandBuffer commands, int i) {
+    return commands.right(i) < 0 || commands.left(i) > width
+        || commands.bottom(i) < 0 || commands.top(i) > height;
+  }
+
+  // Whether the i-th command is stored in the grid cells (rather than skipped or oversized).
+  private boolean isGridded(CommandBuffer commands, int i) {
+    if (commands.isRemoved(i) || commands.type(i) == Drawable.DrawableType.CANVAS || isOutside(commands, i)) {
+      return false;
+    }
+    long cells = (long) (column(commands.right(i)) - column(commands.left(i)) + 1)
+        * (row(commands.bottom(i)) - row(commands.top(i)) + 1);
+    return cells <= MAX_CELLS_PER_COMMAND;
+  }
+
+  private int column(double x) {
+    return Math.max(0, Math.min(columns - 1, (int) Math.floor(x / cellWidth)));
+  }
+
+  private int row(double y) {
+    return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / cellHeight)));
+  }
+
+  /**
+   * Find the commands whose bounds overlap the given rectangle (edges included),
+   * plus all nested canvases. The grid must be up to date (see {@link #update}).
+   *
+   * @return the number of commands found; their indices are the first entries of
+   * {@link #results}, in increasing order (i.e. in drawing order).
+   */
+  int query(CommandBuffer commands, double left, double top, double right, double bottom) {
+    assert(builtVersion == commands.version());
+    if (++mark == 0) {
+      // The mark wrapped around, so old marks could be mistaken for new ones.
+      Arrays.fill(marks, 0);
+      mark = 1;
+    }
+    int count = 0;
+    for (int k = 0; k < oversizedCount; k++) {
+      count = collect(commands, oversized[k], left, top, right, bottom, count);
+    }
+    if (right >= 0 && left <= width && bottom >= 0 && top <= height) {
+      int c0 = column(left), c1 = column(right);
+      int r0 = row(top), r1 = row(bottom);
+      for (int r = r0; r <= r1; r++) {
+        for (int c = c0; c <= c1; c++) {
+          for (int k = cellStart[r * columns + c]; k < cellStart[r * columns + c + 1]; k++) {
+            count = collect(commands, cellItems[k], left, top, right, bottom, count);
+          }
+        }
+      }
+    }
+    Arrays.sort(results, 0, count);
+    return count;
+  }
+
+  // Add the i-th command to the results if it was not collected yet and is a canvas or
+  // overlaps the rectangle.
+  private int collect(CommandBuffer commands, int i, double left, double top, double right, double bottom,
+                      int count) {
+    if (marks[i] == mark) return count;
+    marks[i] = mark;
+    if (commands.type(i) == Drawable.DrawableType.CANVAS
+        || (commands.right(i) >= left && commands.left(i) <= right
+            && commands.bottom(i) >= top && commands.top(i) <= bottom)) {
+      results[count++] = i;
+    }
+    return count;
+  }
+
+  /** @return the indices found by the last query; see {@link #query}. */
+  int[] results() {
+    return results;
+  }
+}
@@ -0,0 +1,60 @@
+package processingwrapper;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+import java.util.Locale;
+
+/**
+ * Draws the {@link FrameStats} of a frame as text in the top left corner of
+ * the graphics, when enabled with {@link AppSettings#withStatsOverlay}.
+ *
+ * Not externally accessible! Used by {@link FrameLoop}.
+ */
+final class StatsOverlay {
+  private static final float TEXT_SIZE = 12;
+  private static final float LINE_HEIGHT = 16;
+  private static final float MARGIN = 6;
+
+  private StatsOverlay() {
+  }
+
+  /** @return the width and height of the box drawn, from the top left corner. */
+  static float[] draw(PGraphics g, FrameStats stats) {
+    String[] lines = {
+        String.format(Locale.ROOT, "frame %.1f ms (p50 %.1f, p99 %.1f)",
+            millis(stats.frameTime()), millis(stats.frameTimeP50()), millis(stats.frameTimeP99())),
+        String.format(Locale.ROOT, "drawFrame %.2f ms, commit %.2f ms",
+            millis(stats.drawFrameTime()), millis(stats.commitTime())),
+        String.format(Locale.ROOT, "%d rects, %d ellipses, %d images, %d canvases (depth %d)",
+            stats.rectangles(), stats.ellipses(), stats.images(), stats.canvases(), stats.maxDepth()),
+        String.format(Locale.ROOT, "%d state changes (%d elided), %d clips, %d culled",
+            stats.stateChanges(), stats.elidedStateChanges(), stats.clipCalls(), stats.culledElements()),
+        stats.allocatedBytes() < 0 ? "allocated: n/a"
+            : String.format(Locale.ROOT, "allocated %.1f KiB", stats.allocatedBytes() / 1024.0),
+    };
+
+    g.pushStyle();
+    // The clip rectangle is not part of the style, and is left set by the commit.
+    g.noClip();
+    g.textSize(TEXT_SIZE);
+    float width = 0;
+    for (String line : lines) width = Math.max(width, g.textWidth(line));
+    g.noStroke();
+    g.fill(0, 160);
+    g.rectMode(PApplet.CORNER);
+    float[] box = {width + 2 * MARGIN, lines.length * LINE_HEIGHT + 2 * MARGIN};
+    g.rect(0, 0, box[0], box[1]);
+    g.fill(255);
+    g.textAlign(PApplet.LEFT, PApplet.TOP);
+    for (int i = 0; i < lines.length; i++) {
+      g.text(lines[i], MARGIN, MARGIN + i * LINE_HEIGHT);
+    }
+    g.popStyle();
+    return box;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+}
@@ -0,0 +1,242 @@
+package processingwrapper;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Draws {@link FlatCommands} into an array of ARGB pixels in software, as an
+ * alternative to committing a canvas through Processing's single-threaded
+ * Java2D renderer. The pixels are split into square tiles; every element is
+ * put into the bins of the tiles that its bounds (within its clip rectangle)
+ * overlap, and then the tiles are drawn in parallel, each drawing the
+ * elements of its bin in order. As no two tiles share a pixel, drawing a tile
+ * needs no synchronization, and the result does not depend on the number of
+ * threads.
+ *
+ * A pixel belongs to a shape if its center lies inside it; edges are not
+ * anti-aliased. Strokes are centered on the outline of the shape, like
+ * Processing's, and images are sampled from their nearest pixel. Colors are
+ * blended like Processing's default blend mode.
+ *
+ * Not externally accessible! Used by {@link FrameLoop} for software rendering.
+ */
+final class TileRasterizer {
+  static final int TILE_SIZE = 64;
+  private static final int BACKGROUND = 0xffffffff;
+
+  private final int width, height;
+  private final int tileColumns, tileRows;
+  private final int[] pixels;
+  // bins[t] lists the indices of the elements that overlap tile t, in drawing order.
+  private final int[][] bins;
+  private final int[] binSizes;
+
+  TileRasterizer(int width, int height) {
+    if (width <= 0 || height <= 0) throw new IllegalArgumentException("size not positive");
+    this.width = width;
+    this.height = height;
+    tileColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+    tileRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+    pixels = new int[width * height];
+    bins = new int[tileColumns * tileRows][];
+    Arrays.fill(bins, new int[0]);
+    binSizes = new int[bins.length];
+  }
+
+  int width() {
+    return width;
+  }
+
+  int height() {
+    return height;
+  }
+
+  /**
+   * Draw the elements onto a white background.
+   * @return the pixels, row by row, as ARGB colors. The array is owned by the
+   * rasterizer and overwritten by the next call.
+   */
+  int[] draw(FlatCommands commands) {
+    bin(commands);
+    IntStream.range(0, bins.length).parallel().forEach(tile -> drawTile(commands, tile));
+    return pixels;
+  }
+
+  private void bin(FlatCommands commands) {
+    Arrays.fill(binSizes, 0);
+    for (int i = 0; i < commands.size(); i++) {
+      // Images are read by several tiles at once, so their pixels must be there beforehand.
+      if (commands.kind(i) == FlatCommands.IMAGE && commands.image(i).pixels == null) commands.image(i).loadPixels();
+      float halfStroke = commands.strokeWeight(i) / 2;
+      int x0 = Math.max(firstPixel(commands.clipLeft(i)), firstPixel(commands.left(i) - halfStroke));
+      int y0 = Math.max(firstPixel(commands.clipTop(i)), firstPixel(commands.top(i) - halfStroke));
+      int x1 = Math.min(firstPixel(commands.clipRight(i)),
+          firstPixel(commands.left(i) + commands.width(i) + halfStroke));
+      int y1 = Math.min(firstPixel(commands.clipBottom(i)),
+          firstPixel(commands.top(i) + commands.height(i) + halfStroke));
+      x0 = Math.max(x0, 0);
+      y0 = Math.max(y0, 0);
+      x1 = Math.min(x1, width);
+      y1 = Math.min(y1, height);
+      if (x0 >= x1 || y0 >= y1) continue;
+      for (int row = y0 / TILE_SIZE; row <= (y1 - 1) / TILE_SIZE; row++) {
+        for (int column = x0 / TILE_SIZE; column <= (x1 - 1) / TILE_SIZE; column++) {
+          int tile = row * tileColumns + column;
+          if (binSizes[tile] == bins[tile].length) {
+            bins[tile] = Arrays.copyOf(bins[tile], Math.max(16, bins[tile].length * 2));
+          }
+          bins[tile][binSizes[tile]++] = i;
+        }
+      }
+    }
+  }
+
+  // The first pixel whose center lies at or after the edge.
+  private static int firstPixel(double edge) {
+    double first = Math.ceil(edge - 0.5);
+    return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, first));
+  }
+
+  private void drawTile(FlatCommands commands, int tile) {
+    int tileLeft = (tile % tileColumns) * TILE_SIZE;
+    int tileTop = (tile / tileColumns) * TILE_SIZE;
+    int tileRight = Math.min(width, tileLeft + TILE_SIZE);
+    int tileBottom = Math.min(height, tileTop + TILE_SIZE);
+    for (int y = tileTop; y < tileBottom; y++) {
+      Arrays.fill(pixels, y * width + tileLeft, y * width + tileRight, BACKGROUND);
+    }
+
+    int[] bin = bins[tile];
+    for (int k = 0; k < binSizes[tile]; k++) {
+      int i = bin[k];
+      // The pixels of the tile that lie within the clip rectangle.
+      int x0 = Math.max(tileLeft, firstPixel(commands.clipLeft(i)));
+      int y0 = Math.max(tileTop, firstPixel(commands.clipTop(i)));
+      int x1 = Math.min(tileRight, firstPixel(commands.clipRight(i)));
+      int y1 = Math.min(tileBottom, firstPixel(commands.clipBottom(i)));
+      if (x0 >= x1 || y0 >= y1) continue;
+      switch (commands.kind(i)) {
+        case FlatCommands.RECTANGLE:
+          drawRectangle(commands, i, x0, y0, x1, y1);
+          break;
+        case FlatCommands.ELLIPSE:
+          drawEllipse(commands, i, x0, y0, x1, y1);
+          break;
+        case FlatCommands.IMAGE:
+          drawImage(commands, i, x0, y0, x1, y1);
+          break;
+      }
+    }
+  }
+
+  private void drawRectangle(FlatCommands commands, int i, int x0, int y0, int x1, int y1) {
+    float left = commands.left(i), top = commands.top(i);
+    float right = left + commands.width(i), bottom = top + commands.height(i);
+    int fill = commands.fillColor(i);
+    if (fill >>> 24 != 0) {
+      int sx0 = Math.max(x0, firstPixel(left)), sx1 = Math.min(x1, firstPixel(right));
+      for (int y = Math.max(y0, firstPixel(top)); y < Math.min(y1, firstPixel(bottom)); y++) {
+        fillSpan(y, sx0, sx1, fill);
+      }
+    }
+    float halfStroke = commands.strokeWeight(i) / 2;
+    int stroke = commands.strokeColor(i);
+    if (halfStroke <= 0 || stroke >>> 24 == 0) return;
+    int outerLeft = firstPixel(left - halfStroke), outerRight = firstPixel(right + halfStroke);
+    int innerLeft = firstPixel(left + halfStroke), innerRight = firstPixel(right - halfStroke);
+    int innerTop = firstPixel(top + halfStroke), innerBottom = firstPixel(bottom - halfStroke);
+    int sx0 = Math.max(x0, outerLeft), sx1 = Math.min(x1, outerRight);
+    for (int y = Math.max(y0, firstPixel(top - halfStroke)); y < Math.min(y1, firstPixel(bottom + halfStroke)); y++) {
+      if (y < innerTop || y >= innerBottom || innerLeft >= innerRight) {
+        fillSpan(y, sx0, sx1, stroke);
+      } else {
+        fillSpan(y, sx0, Math.min(sx1, innerLeft), stroke);
+        fillSpan(y, Math.max(sx0, innerRight), sx1, stroke);
+      }
+    }
+  }
+
+  private void drawEllipse(FlatCommands commands, int i, int x0, int y0, int x1, int y1) {
+    double rx = commands.width(i) / 2.0, ry = commands.height(i) / 2.0;
+    double cx = commands.left(i) + rx, cy = commands.top(i) + ry;
+    double halfStroke = commands.strokeWeight(i) / 2.0;
+    int fill = commands.fillColor(i), stroke = commands.strokeColor(i);
+    boolean filled = fill >>> 24 != 0;
+    boolean stroked = halfStroke > 0 && stroke >>> 24 != 0;
+    double outerRx = stroked ? rx + halfStroke : rx, outerRy = stroked ? ry + halfStroke : ry;
+    double innerRx = rx - halfStroke, innerRy = ry - halfStroke;
+
+    for (int y = Math.max(y0, firstPixel(cy - outerRy)); y < Math.min(y1, firstPixel(cy + outerRy)); y++) {
+      double dy = y + 0.5 - cy;
+      if (filled) {
+        double half = halfWidth(rx, ry, dy);
+        if (half >= 0) fillSpan(y, Math.max(x0, firstPixel(cx - half)), Math.min(x1, firstPixel(cx + half)), fill);
+      }
+      if (stroked) {
+        double outer = halfWidth(outerRx, outerRy, dy);
+        if (outer < 0) continue;
+        int sx0 = Math.max(x0, firstPixel(cx - outer)), sx1 = Math.min(x1, firstPixel(cx + outer));
+        double inner = innerRx > 0 && innerRy > 0 ? halfWidth(innerRx, innerRy, dy) : -1;
+        if (inner < 0) {
+          fillSpan(y, sx0, sx1, stroke);
+        } else {
+          fillSpan(y, sx0, Math.min(sx1, firstPixel(cx - inner)), stroke);
+          fillSpan(y, Math.max(sx0, firstPixel(cx + inner)), sx1, stroke);
+        }
+      }
+    }
+  }
+
+  // Half the width of the ellipse with the given radii at the given distance from its
+  // center, or -1 if the row does not cross it.
+  private static double halfWidth(double rx, double ry, double dy) {
+    double t = dy / ry;
+    return t * t <= 1 ? rx * Math.sqrt(1 - t * t) : -1;
+  }
+
+  private void drawImage(FlatCommands commands, int i, int x0, int y0, int x1, int y1) {
+    PImage image = commands.image(i);
+    float left = commands.left(i), top = commands.top(i), w = commands.width(i), h = commands.height(i);
+    if (w <= 0 || h <= 0) return;
+    // The region of the image to sample, which is all of it unless it is an atlas.
+    int imageX = commands.imageX(i), imageY = commands.imageY(i);
+    int imageWidth = commands.imageWidth(i), imageHeight = commands.imageHeight(i);
+    int opaque = image.format == PConstants.RGB ? 0xff000000 : 0;
+    int sx0 = Math.max(x0, firstPixel(left)), sx1 = Math.min(x1, firstPixel(left + w));
+    for (int y = Math.max(y0, firstPixel(top)); y < Math.min(y1, firstPixel(top + h)); y++) {
+      int sourceY = imageY + Math.min(imageHeight - 1, (int) ((y + 0.5 - top) * imageHeight / h));
+      int source = sourceY * image.width + imageX;
+      int row = y * width;
+      for (int x = sx0; x < sx1; x++) {
+        int sourceX = Math.min(imageWidth - 1, (int) ((x + 0.5 - left) * imageWidth / w));
+        pixels[row + x] = blend(pixels[row + x], image.pixels[source + sourceX] | opaque);
+      }
+    }
+  }
+
+  private void fillSpan(int y, int x0, int x1, int color) {
+    if (x0 >= x1) return;
+    int row = y * width;
+    if (color >>> 24 == 255) {
+      Arrays.fill(pixels, row + x0, row + x1, color);
+    } else {
+      for (int x = x0; x < x1; x++) pixels[row + x] = blend(pixels[row + x], color);
+    }
+  }
+
+  // The color src drawn over dst, both ARGB.
+  static int blend(int dst, int src) {
+    int sa = src >>> 24;
+    if (sa == 255) return src;
+    if (sa == 0) return dst;
+    int dw = (dst >>> 24) * (255 - sa) / 255;
+    int a = sa + dw;
+    int r = (((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * dw) / a;
+    int g = (((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * dw) / a;
+    int b = ((src & 0xff) * sa + (dst & 0xff) * dw) / a;
+    return a << 24 | r << 16 | g << 8 | b;
+  }
+}
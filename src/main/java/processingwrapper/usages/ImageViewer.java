@@ -6,6 +6,8 @@ import processingwrapper.ImageSettings;
 import processingwrapper.Position;
 import processingwrapper.ProcessingApp;
 
+import java.util.List;
+
 // These imports are just for the old, buggy example from Processing.
 import processing.core.PApplet;
 import processing.core.PImage;
@@ -27,10 +29,14 @@ public class ImageViewer {
     final Canvas wolfCanvas;
     final Canvas eagleCanvas;
 
-    final Image dog = Image.ofFile("images/dog.jpg");
-    final Image cat = Image.ofFile("images/cat.jpg");
-    final Image wolf = Image.ofFile("images/wolf.jpg");
-    final Image eagle = Image.ofFile("images/eagle.jpg");
+    // The images are decoded in parallel in the background, and drawn
+    // as placeholders until they are ready.
+    final List<Image> images = Image.loadAll(
+        "images/dog.jpg", "images/cat.jpg", "images/wolf.jpg", "images/eagle.jpg");
+    final Image dog = images.get(0);
+    final Image cat = images.get(1);
+    final Image wolf = images.get(2);
+    final Image eagle = images.get(3);
 
     final Position centered;
     final ImageSettings sized;
@@ -40,24 +46,24 @@ public class ImageViewer {
       this.height = height;
 
       double w = width / 2, h = height / 2;
-      dogCanvas = Canvas.of(w, h);
-      catCanvas = Canvas.of(w, h);
-      wolfCanvas = Canvas.of(w, h);
-      eagleCanvas = Canvas.of(w, h);
+      dogCanvas = Canvas.retained(w, h);
+      catCanvas = Canvas.retained(w, h);
+      wolfCanvas = Canvas.retained(w, h);
+      eagleCanvas = Canvas.retained(w, h);
 
       float buffer = 10;
       sized = ImageSettings.createWithSize(w - buffer, h - buffer);
       centered = Position.centeredAt(w / 2, h / 2);
-    }
 
-    @Override
-    public void drawFrame(Canvas mainCanvas) {
-      // Draw image on canvas.
+      // The images never change, so draw them once on retained canvases.
       dogCanvas.draw(dog, sized, centered);
       catCanvas.draw(cat, sized, centered);
       wolfCanvas.draw(wolf, sized, centered);
       eagleCanvas.draw(eagle, sized, centered);
+    }
 
+    @Override
+    public void drawFrame(Canvas mainCanvas) {
       // Draw subcanvases on main canvas
       mainCanvas.draw(dogCanvas, Position.topLeftCornerAt(0, 0));
       mainCanvas.draw(catCanvas, Position.topLeftCornerAt(width / 2, 0));
@@ -3,6 +3,7 @@ package processingwrapper.usages;
 import java.awt.Color;
 
 import processing.core.PApplet;
+import processingwrapper.AppSettings;
 import processingwrapper.Canvas;
 import processingwrapper.Circle;
 import processingwrapper.Position;
@@ -13,7 +14,8 @@ import processingwrapper.ShapeSettings;
 public class ScreenSaver {
   
   public static void main(String[] args) {
-     ProcessingApp.start(ScreensaverApp::new, 800, 800);
+     // Only the moving box changes, so only the area around it is redrawn.
+     ProcessingApp.start(ScreensaverApp::new, 800, 800, AppSettings.createDefault().withIncrementalRedraw(true));
     // Old code:
     // PApplet.main(OldScreensaverApp.class);
   }
@@ -5,17 +5,49 @@ import processingwrapper.Canvas;
 
 import java.awt.*;
 
-public class SolarSystem implements ProcessingApp {
+/**
+ * Venus orbiting the sun, and the moon orbiting the earth orbiting the sun.
+ * The orbits advance at a fixed rate on their own thread (see {@link SimulatedApp}),
+ * so the planets move at the same speed whatever the frame rate.
+ */
+public class SolarSystem extends SimulatedApp<SolarSystem.Orbits> {
 
   private static final double
     DEGREES_IN_A_CIRCLE = 360,
     DAYS_IN_A_VENUS_YEAR = 225,
     DAYS_IN_A_YEAR = 365.25,
     MONTHS_IN_A_YEAR = 12,
-    DAYS_IN_A_MONTH = DAYS_IN_A_YEAR/MONTHS_IN_A_YEAR;
+    DAYS_IN_A_MONTH = DAYS_IN_A_YEAR/MONTHS_IN_A_YEAR,
+    DAYS_PER_SECOND = 60;
+
+  /** Where the planets are on their orbits. */
+  static final class Orbits {
+    final double venusAngleDeg, earthAngleDeg, moonAngleDeg;
+
+    Orbits(double venusAngleDeg, double earthAngleDeg, double moonAngleDeg) {
+      this.venusAngleDeg = venusAngleDeg;
+      this.earthAngleDeg = earthAngleDeg;
+      this.moonAngleDeg = moonAngleDeg;
+    }
+
+    // Advance the orbits by a day.
+    Orbits nextDay() {
+      return new Orbits(
+          venusAngleDeg + DEGREES_IN_A_CIRCLE / DAYS_IN_A_VENUS_YEAR,
+          earthAngleDeg + DEGREES_IN_A_CIRCLE / DAYS_IN_A_YEAR,
+          moonAngleDeg + DEGREES_IN_A_CIRCLE / DAYS_IN_A_MONTH);
+    }
+
+    // The orbits the given fraction of the way from these to the other orbits.
+    Orbits interpolate(Orbits other, double alpha) {
+      return new Orbits(
+          venusAngleDeg * (1 - alpha) + other.venusAngleDeg * alpha,
+          earthAngleDeg * (1 - alpha) + other.earthAngleDeg * alpha,
+          moonAngleDeg * (1 - alpha) + other.moonAngleDeg * alpha);
+    }
+  }
 
   private final double venusOrbitRadius, earthOrbitRadius, moonOrbitRadius;
-  private double venusAngleDeg, earthAngleDeg, moonAngleDeg;
 
   private final Position center, earthCenter;
   private final Canvas earthOrbitCanvas;
@@ -28,6 +60,7 @@ public class SolarSystem implements ProcessingApp {
     MOON_PROPERTIES = ShapeSettings.createWithFill(Color.GRAY);
 
   public SolarSystem(double width, double height) {
+    super(new Orbits(0, 0, 0), DAYS_PER_SECOND);
     double sunRadius = width / 10;
     double venusRadius = sunRadius / 5.2;
     double earthRadius = sunRadius / 5;
@@ -38,9 +71,6 @@ public class SolarSystem implements ProcessingApp {
     moonOrbitRadius = earthRadius + 2 * moonRadius;
 
     double earthOrbitCanvasSize = 3 * earthRadius + 2 * moonRadius;
-    venusAngleDeg = 0;
-    earthAngleDeg = 0;
-    moonAngleDeg = 0;
 
     center = Position.centeredAt(width / 2, height / 2);
     earthOrbitCanvas = Canvas.of(earthOrbitCanvasSize, earthOrbitCanvasSize);
@@ -54,31 +84,36 @@ public class SolarSystem implements ProcessingApp {
     moon = Drawable.ofShape(Circle.of(moonRadius), MOON_PROPERTIES);
   }
 
+  /**
+   * Advance the orbits by a day.
+   */
+  @Override
+  protected Orbits update(Orbits orbits, double dt) {
+    return orbits.nextDay();
+  }
+
   /**
    * Draw a frame to the canvas
    *
    * @param mainCanvas The main canvas to draw on.
    */
   @Override
-  public void drawFrame(Canvas mainCanvas) {
-    Position venusCenter = center.translateBy(
-        venusOrbitRadius * Math.cos(Math.toRadians(venusAngleDeg)),
-        venusOrbitRadius * Math.sin(Math.toRadians(venusAngleDeg)));
-    Position earthOrbitCanvasCenter = center.translateBy(
-        earthOrbitRadius * Math.cos(Math.toRadians(earthAngleDeg)),
-        earthOrbitRadius * Math.sin(Math.toRadians(earthAngleDeg)));
-    Position moonCenter = earthCenter.translateBy(
-        moonOrbitRadius * Math.cos(Math.toRadians(moonAngleDeg)),
-        moonOrbitRadius * Math.sin(Math.toRadians(moonAngleDeg)));
+  protected void drawFrame(Canvas mainCanvas, Orbits previous, Orbits current, double alpha) {
+    Orbits orbits = previous.interpolate(current, alpha);
+    // The planets are drawn at coordinates rather than at Positions, so that drawing a
+    // frame does not allocate any.
+    double venusX = center.x() + venusOrbitRadius * Math.cos(Math.toRadians(orbits.venusAngleDeg));
+    double venusY = center.y() + venusOrbitRadius * Math.sin(Math.toRadians(orbits.venusAngleDeg));
+    double earthOrbitCanvasX = center.x() + earthOrbitRadius * Math.cos(Math.toRadians(orbits.earthAngleDeg));
+    double earthOrbitCanvasY = center.y() + earthOrbitRadius * Math.sin(Math.toRadians(orbits.earthAngleDeg));
+    double moonX = earthCenter.x() + moonOrbitRadius * Math.cos(Math.toRadians(orbits.moonAngleDeg));
+    double moonY = earthCenter.y() + moonOrbitRadius * Math.sin(Math.toRadians(orbits.moonAngleDeg));
 
     mainCanvas.draw(sun, center);
-    mainCanvas.draw(venus, venusCenter);
+    mainCanvas.draw(venus, venusX, venusY, Position.DrawMode.CENTER);
     earthOrbitCanvas.draw(earth, earthCenter);
-    earthOrbitCanvas.draw(moon, moonCenter);
-    mainCanvas.draw(earthOrbitCanvas, earthOrbitCanvasCenter);
-    venusAngleDeg += DEGREES_IN_A_CIRCLE / DAYS_IN_A_VENUS_YEAR;
-    earthAngleDeg += DEGREES_IN_A_CIRCLE / DAYS_IN_A_YEAR;
-    moonAngleDeg += DEGREES_IN_A_CIRCLE / DAYS_IN_A_MONTH;
+    earthOrbitCanvas.draw(moon, moonX, moonY, Position.DrawMode.CENTER);
+    mainCanvas.draw(earthOrbitCanvas, earthOrbitCanvasX, earthOrbitCanvasY, Position.DrawMode.CENTER);
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,74 @@
+package processingwrapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that canvases drawn from the {@link RenderCache} come out like
+ * canvases drawn directly, up to rounding where the image is blended.
+ */
+class RenderCacheTest {
+  private static final int SIZE = 300;
+  // Blending the image rounds each channel differently by a level or so.
+  private static final int TOLERANCE = 2;
+
+  // A 40x40 child, drawn at (childX, childY) within a 100x50 canvas drawn at (x, y).
+  private static ProcessingApp nested(boolean cacheable, boolean parentBackground, double x, double y,
+                                      double childX, double childY) {
+    Canvas parent = Canvas.of(100, 50);
+    Canvas child = Canvas.of(40, 40);
+    child.setCacheable(cacheable);
+    return main -> {
+      main.fill(Color.WHITE);
+      if (parentBackground) parent.fill(new Color(0xfc, 0x11, 0xca));
+      child.fill(Color.MAGENTA);
+      child.draw(Circle.of(30), ShapeSettings.createWithStroke(2, Color.BLUE), Position.centeredAt(20.3, 30.6));
+      parent.draw(child, Position.topLeftCornerAt(childX, childY));
+      main.draw(parent, Position.topLeftCornerAt(x, y));
+    };
+  }
+
+  private static void assertCachedLikeDirect(double x, double y, double childX, double childY) {
+    for (boolean parentBackground : new boolean[] {false, true}) {
+      int[] direct = ProcessingApp.renderOffscreen(
+          (w, h) -> nested(false, parentBackground, x, y, childX, childY), SIZE, SIZE, 1).get(0);
+      List<int[]> cached = ProcessingApp.renderOffscreen(
+          (w, h) -> nested(true, parentBackground, x, y, childX, childY), SIZE, SIZE, 3);
+      for (int f = 0; f < cached.size(); f++) {
+        int[] frame = cached.get(f);
+        for (int p = 0; p < frame.length; p++) {
+          for (int shift = 0; shift < 32; shift += 8) {
+            int difference = Math.abs((frame[p] >> shift & 0xff) - (direct[p] >> shift & 0xff));
+            assertTrue(difference <= TOLERANCE, String.format("frame %d, pixel (%d, %d): %08x instead of %08x",
+                f, p % SIZE, p / SIZE, frame[p], direct[p]));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void cachedCanvasInside() {
+    assertCachedLikeDirect(100.25, 100.75, 10.5, 4.25);
+  }
+
+  @Test
+  void cachedCanvasCutOffAtFractionalBottom() {
+    // The parent ends at y = 150.75, so row 150 of the child is anti-aliased.
+    assertCachedLikeDirect(100.25, 100.75, 30, 30.5);
+  }
+
+  @Test
+  void cachedCanvasCutOffAtFractionalCorner() {
+    assertCachedLikeDirect(100.5, 100.5, 75.25, 25.75);
+  }
+
+  @Test
+  void cachedCanvasStickingOutOfParent() {
+    assertCachedLikeDirect(100.25, 100.75, -10.5, -4.25);
+  }
+}